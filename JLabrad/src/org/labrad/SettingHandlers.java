@@ -128,7 +128,7 @@ public class SettingHandlers {
 
     } else {
       // make a map from all types to the appropriate handlers
-      Map<Type, SettingHandler> typeMap = Maps.newHashMap();
+      Map<Type, SettingHandler> typeMap = Maps.newIdentityHashMap();
       for (TypedHandler th : handlers) {
         for (TypeDescriptor td : th.getTypes()) {
           typeMap.put(td.getType(), th.getHandler());
@@ -19,12 +19,24 @@
 
 package org.labrad.data;
 
+import java.nio.ByteBuffer;
+
 class ByteArrayView {
   private final byte[] bytes;
+  private final ByteBuffer buffer;
   private final int offset;
 
   public ByteArrayView(byte[] bytes, int offset) {
+    this(bytes, null, offset);
+  }
+
+  /**
+   * Create a view that refers either to an array or, for data stored
+   * off the Java heap, to a direct buffer, in which case bytes is null.
+   */
+  public ByteArrayView(byte[] bytes, ByteBuffer buffer, int offset) {
     this.bytes = bytes;
+    this.buffer = buffer;
     this.offset = offset;
   }
 
@@ -32,6 +44,10 @@ class ByteArrayView {
     return bytes;
   }
 
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
   public int getOffset() {
     return offset;
   }
@@ -22,11 +22,16 @@ package org.labrad.data;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Random;
 
 /**
  * Functions for storing basic data types in arrays of bytes, and
  * for converting arrays of bytes back into basic data types.
+ * Functions that take both an array and a ByteBuffer work on the
+ * buffer if it is not null, and otherwise on the array; this is
+ * used for list bodies that are stored off the Java heap.
  * @author maffoo
  *
  */
@@ -34,14 +39,24 @@ class Bytes {
 
   // boolean (true/false value)
   static boolean getBool(ByteArrayView b) {
-    return getBool(b.getBytes(), b.getOffset());
+    return getBool(b.getBytes(), b.getBuffer(), b.getOffset());
+  }
+  static boolean getBool(byte[] buf, ByteBuffer direct, int ofs) {
+    return direct != null ? direct.get(ofs) != 0 : getBool(buf, ofs);
   }
   static boolean getBool(byte[] buf, int ofs) {
     return buf[ofs] != 0;
   }
 
   static void setBool(ByteArrayView b, boolean data) {
-    setBool(b.getBytes(), b.getOffset(), data);
+    setBool(b.getBytes(), b.getBuffer(), b.getOffset(), data);
+  }
+  static void setBool(byte[] buf, ByteBuffer direct, int ofs, boolean data) {
+    if (direct != null) {
+      direct.put(ofs, data ? (byte) 1 : (byte) 0);
+    } else {
+      setBool(buf, ofs, data);
+    }
   }
   static void setBool(byte[] buf, int ofs, boolean data) {
     buf[ofs] = data ? (byte) 1 : (byte) 0;
@@ -50,7 +65,10 @@ class Bytes {
 
   // int (signed 32-bit integer)
   static int getInt(ByteArrayView b) {
-    return getInt(b.getBytes(), b.getOffset());
+    return getInt(b.getBytes(), b.getBuffer(), b.getOffset());
+  }
+  static int getInt(byte[] buf, ByteBuffer direct, int ofs) {
+    return direct != null ? direct.getInt(ofs) : getInt(buf, ofs);
   }
   static int getInt(byte[] buf, int ofs) {
     return (int) ((0xFF & (int) buf[ofs + 0]) << 24
@@ -60,7 +78,14 @@ class Bytes {
   }
 
   static void setInt(ByteArrayView b, int data) {
-    setInt(b.getBytes(), b.getOffset(), data);
+    setInt(b.getBytes(), b.getBuffer(), b.getOffset(), data);
+  }
+  static void setInt(byte[] buf, ByteBuffer direct, int ofs, int data) {
+    if (direct != null) {
+      direct.putInt(ofs, data);
+    } else {
+      setInt(buf, ofs, data);
+    }
   }
   static void setInt(byte[] buf, int ofs, int data) {
     buf[ofs + 0] = (byte) ((data & 0xFF000000) >> 24);
@@ -77,9 +102,10 @@ class Bytes {
    * @throws IOException
    */
   static int readInt(ByteArrayInputStream is) throws IOException {
-    byte[] bytes = new byte[4];
-    is.read(bytes, 0, 4);
-    return getInt(bytes, 0);
+    return (is.read() & 0xFF) << 24
+        | (is.read() & 0xFF) << 16
+        | (is.read() & 0xFF) << 8
+        | (is.read() & 0xFF) << 0;
   }
 
   /**
@@ -91,15 +117,19 @@ class Bytes {
    */
   static void writeInt(ByteArrayOutputStream os, int data)
   throws IOException {
-    byte[] bytes = new byte[4];
-    setInt(bytes, 0, data);
-    os.write(bytes);
+    os.write(data >>> 24);
+    os.write(data >>> 16);
+    os.write(data >>> 8);
+    os.write(data >>> 0);
   }
 
 
   // word (unsigned 32-bit integer)
   static long getWord(ByteArrayView b) {
-    return getWord(b.getBytes(), b.getOffset());
+    return getWord(b.getBytes(), b.getBuffer(), b.getOffset());
+  }
+  static long getWord(byte[] buf, ByteBuffer direct, int ofs) {
+    return direct != null ? direct.getInt(ofs) & 0xFFFFFFFFL : getWord(buf, ofs);
   }
   static long getWord(byte[] buf, int ofs) {
     return (long) (0xFF & (int) buf[ofs + 0]) << 24
@@ -109,7 +139,14 @@ class Bytes {
   }
 
   static void setWord(ByteArrayView b, long data) {
-    setWord(b.getBytes(), b.getOffset(), data);
+    setWord(b.getBytes(), b.getBuffer(), b.getOffset(), data);
+  }
+  static void setWord(byte[] buf, ByteBuffer direct, int ofs, long data) {
+    if (direct != null) {
+      direct.putInt(ofs, (int) data);
+    } else {
+      setWord(buf, ofs, data);
+    }
   }
   static void setWord(byte[] buf, int ofs, long data) {
     buf[ofs + 0] = (byte) ((data & 0xFF000000) >> 24);
@@ -121,7 +158,10 @@ class Bytes {
 
   // long (64-bit integer)
   static long getLong(ByteArrayView b) {
-    return getLong(b.getBytes(), b.getOffset());
+    return getLong(b.getBytes(), b.getBuffer(), b.getOffset());
+  }
+  static long getLong(byte[] buf, ByteBuffer direct, int ofs) {
+    return direct != null ? direct.getLong(ofs) : getLong(buf, ofs);
   }
   static long getLong(byte[] buf, int ofs) {
     return (long) (0xFF & (int) buf[ofs + 0]) << 56
@@ -135,7 +175,14 @@ class Bytes {
   }
 
   static void setLong(ByteArrayView b, long data) {
-    setLong(b.getBytes(), b.getOffset(), data);
+    setLong(b.getBytes(), b.getBuffer(), b.getOffset(), data);
+  }
+  static void setLong(byte[] buf, ByteBuffer direct, int ofs, long data) {
+    if (direct != null) {
+      direct.putLong(ofs, data);
+    } else {
+      setLong(buf, ofs, data);
+    }
   }
   static void setLong(byte[] buf, int ofs, long data) {
     buf[ofs + 0] = (byte) ((data & 0xFF00000000000000L) >> 56);
@@ -151,14 +198,24 @@ class Bytes {
 
   // doubles
   static double getDouble(ByteArrayView b) {
-    return getDouble(b.getBytes(), b.getOffset());
+    return getDouble(b.getBytes(), b.getBuffer(), b.getOffset());
+  }
+  static double getDouble(byte[] buf, ByteBuffer direct, int ofs) {
+    return direct != null ? direct.getDouble(ofs) : getDouble(buf, ofs);
   }
   static double getDouble(byte[] buf, int ofs) {
     return Double.longBitsToDouble(getLong(buf, ofs));
   }
 
   static void setDouble(ByteArrayView b, double data) {
-    setDouble(b.getBytes(), b.getOffset(), data);
+    setDouble(b.getBytes(), b.getBuffer(), b.getOffset(), data);
+  }
+  static void setDouble(byte[] buf, ByteBuffer direct, int ofs, double data) {
+    if (direct != null) {
+      direct.putDouble(ofs, data);
+    } else {
+      setDouble(buf, ofs, data);
+    }
   }
   static void setDouble(byte[] buf, int ofs, double data) {
     setLong(buf, ofs, Double.doubleToRawLongBits(data));
@@ -167,6 +224,10 @@ class Bytes {
 
   // complex numbers
   static Complex getComplex(ByteArrayView b) {
+    if (b.getBuffer() != null) {
+      ByteBuffer direct = b.getBuffer();
+      return new Complex(direct.getDouble(b.getOffset()), direct.getDouble(b.getOffset() + 8));
+    }
     return getComplex(b.getBytes(), b.getOffset());
   }
   static Complex getComplex(byte[] buf, int ofs) {
@@ -174,7 +235,8 @@ class Bytes {
   }
 
   static void setComplex(ByteArrayView b, Complex data) {
-    setComplex(b.getBytes(), b.getOffset(), data);
+    setDouble(b.getBytes(), b.getBuffer(), b.getOffset(), data.getReal());
+    setDouble(b.getBytes(), b.getBuffer(), b.getOffset() + 8, data.getImag());
   }
   static void setComplex(byte[] buf, int ofs, Complex data) {
     setDouble(buf, ofs, data.getReal());
@@ -182,6 +244,145 @@ class Bytes {
   }
 
 
+  // bulk getters for arrays of fixed-width elements.  These use NIO view
+  // buffers, which decode big-endian data much faster than byte-by-byte.
+  static void getBools(byte[] buf, int ofs, boolean[] dst, int dstOfs, int len) {
+    for (int i = 0; i < len; i++) {
+      dst[dstOfs + i] = buf[ofs + i] != 0;
+    }
+  }
+
+  static void getInts(byte[] buf, int ofs, int[] dst, int dstOfs, int len) {
+    ByteBuffer.wrap(buf, ofs, 4 * len).asIntBuffer().get(dst, dstOfs, len);
+  }
+
+  static void getWords(byte[] buf, int ofs, long[] dst, int dstOfs, int len) {
+    IntBuffer ints = ByteBuffer.wrap(buf, ofs, 4 * len).asIntBuffer();
+    for (int i = 0; i < len; i++) {
+      dst[dstOfs + i] = ints.get(i) & 0xFFFFFFFFL;
+    }
+  }
+
+  static void getDoubles(byte[] buf, int ofs, double[] dst, int dstOfs, int len) {
+    ByteBuffer.wrap(buf, ofs, 8 * len).asDoubleBuffer().get(dst, dstOfs, len);
+  }
+
+
+  // bulk getters that read from a list body, wherever it is stored
+  static void getBools(ByteArrayView b, int ofs, boolean[] dst, int dstOfs, int len) {
+    if (b.getBuffer() == null) {
+      getBools(b.getBytes(), b.getOffset() + ofs, dst, dstOfs, len);
+    } else {
+      ByteBuffer direct = b.getBuffer();
+      int base = b.getOffset() + ofs;
+      for (int i = 0; i < len; i++) {
+        dst[dstOfs + i] = direct.get(base + i) != 0;
+      }
+    }
+  }
+
+  static void getInts(ByteArrayView b, int ofs, int[] dst, int dstOfs, int len) {
+    if (b.getBuffer() == null) {
+      getInts(b.getBytes(), b.getOffset() + ofs, dst, dstOfs, len);
+    } else {
+      slice(b, ofs, 4 * len).asIntBuffer().get(dst, dstOfs, len);
+    }
+  }
+
+  static void getWords(ByteArrayView b, int ofs, long[] dst, int dstOfs, int len) {
+    if (b.getBuffer() == null) {
+      getWords(b.getBytes(), b.getOffset() + ofs, dst, dstOfs, len);
+    } else {
+      IntBuffer ints = slice(b, ofs, 4 * len).asIntBuffer();
+      for (int i = 0; i < len; i++) {
+        dst[dstOfs + i] = ints.get(i) & 0xFFFFFFFFL;
+      }
+    }
+  }
+
+  static void getDoubles(ByteArrayView b, int ofs, double[] dst, int dstOfs, int len) {
+    if (b.getBuffer() == null) {
+      getDoubles(b.getBytes(), b.getOffset() + ofs, dst, dstOfs, len);
+    } else {
+      slice(b, ofs, 8 * len).asDoubleBuffer().get(dst, dstOfs, len);
+    }
+  }
+
+
+  // bulk setters for arrays of fixed-width elements
+  static void setBools(byte[] buf, int ofs, boolean[] src, int srcOfs, int len) {
+    for (int i = 0; i < len; i++) {
+      buf[ofs + i] = src[srcOfs + i] ? (byte) 1 : (byte) 0;
+    }
+  }
+
+  static void setInts(byte[] buf, int ofs, int[] src, int srcOfs, int len) {
+    ByteBuffer.wrap(buf, ofs, 4 * len).asIntBuffer().put(src, srcOfs, len);
+  }
+
+  static void setWords(byte[] buf, int ofs, long[] src, int srcOfs, int len) {
+    IntBuffer ints = ByteBuffer.wrap(buf, ofs, 4 * len).asIntBuffer();
+    for (int i = 0; i < len; i++) {
+      ints.put(i, (int) src[srcOfs + i]);
+    }
+  }
+
+  static void setDoubles(byte[] buf, int ofs, double[] src, int srcOfs, int len) {
+    ByteBuffer.wrap(buf, ofs, 8 * len).asDoubleBuffer().put(src, srcOfs, len);
+  }
+
+
+  // bulk setters that write to a list body, wherever it is stored
+  static void setBools(ByteArrayView b, int ofs, boolean[] src, int srcOfs, int len) {
+    if (b.getBuffer() == null) {
+      setBools(b.getBytes(), b.getOffset() + ofs, src, srcOfs, len);
+    } else {
+      ByteBuffer direct = b.getBuffer();
+      int base = b.getOffset() + ofs;
+      for (int i = 0; i < len; i++) {
+        direct.put(base + i, src[srcOfs + i] ? (byte) 1 : (byte) 0);
+      }
+    }
+  }
+
+  static void setInts(ByteArrayView b, int ofs, int[] src, int srcOfs, int len) {
+    if (b.getBuffer() == null) {
+      setInts(b.getBytes(), b.getOffset() + ofs, src, srcOfs, len);
+    } else {
+      slice(b, ofs, 4 * len).asIntBuffer().put(src, srcOfs, len);
+    }
+  }
+
+  static void setWords(ByteArrayView b, int ofs, long[] src, int srcOfs, int len) {
+    if (b.getBuffer() == null) {
+      setWords(b.getBytes(), b.getOffset() + ofs, src, srcOfs, len);
+    } else {
+      IntBuffer ints = slice(b, ofs, 4 * len).asIntBuffer();
+      for (int i = 0; i < len; i++) {
+        ints.put(i, (int) src[srcOfs + i]);
+      }
+    }
+  }
+
+  static void setDoubles(ByteArrayView b, int ofs, double[] src, int srcOfs, int len) {
+    if (b.getBuffer() == null) {
+      setDoubles(b.getBytes(), b.getOffset() + ofs, src, srcOfs, len);
+    } else {
+      slice(b, ofs, 8 * len).asDoubleBuffer().put(src, srcOfs, len);
+    }
+  }
+
+  /**
+   * Get a big-endian buffer covering len bytes of an off-heap list body,
+   * starting ofs bytes past the start of the view.
+   */
+  private static ByteBuffer slice(ByteArrayView b, int ofs, int len) {
+    ByteBuffer dup = b.getBuffer().duplicate();
+    dup.limit(b.getOffset() + ofs + len).position(b.getOffset() + ofs);
+    return dup.slice();
+  }
+
+
   // basic tests
   public static void main(String[] args) {
     byte[] bs = new byte[100];
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ *
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+
+import org.labrad.types.Type;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Flattens and unflattens data of one particular type.  A codec is built
+ * once for each type and then cached, so the structure of the type is
+ * worked out ahead of time rather than on every call: runs of adjacent
+ * fixed-width cluster elements are merged into a single copy, errors go
+ * straight to the codec for their (is...) payload, and list codecs hold
+ * on to the codec for their elements.
+ *
+ * In each case, data is stored in a byte array at a given offset, with
+ * variable-width parts stored in a heap, as in Data.  The flattened form
+ * is written to or read from a big-endian ByteBuffer at an absolute
+ * position.  Codecs can also pass the flattened form to a Sink piece by
+ * piece, or compare two objects for equal flattened forms, without building
+ * the flattened bytes at all.
+ */
+abstract class Codec {
+
+  /**
+   * Receives the flattened form of data, in order, one piece at a time.
+   */
+  interface Sink {
+    void update(byte[] buf, int ofs, int len);
+    void update(ByteBuffer buf);
+    void updateInt(int value);
+  }
+
+  /** Codecs for canonical types. */
+  private static final ConcurrentMap<Type, Codec> codecs =
+      new MapMaker().weakKeys().makeMap();
+
+  /**
+   * Heap index of a string or list body that has not been set yet.  Such
+   * pieces are treated as empty when scanning or comparing, so that data
+   * that is still being built can be hashed and compared.
+   */
+  static final int UNSET = -1;
+
+  /**
+   * Get the codec for the given type.
+   * @param type
+   * @return
+   */
+  static Codec forType(Type type) {
+    Codec codec = codecs.get(type);
+    if (codec == null) {
+      codec = build(type);
+      codecs.put(type, codec);
+    }
+    return codec;
+  }
+
+  private static Codec build(Type type) {
+    if (type.isFixedWidth()) {
+      return new Fixed(0, type.dataWidth());
+    }
+    switch (type.getCode()) {
+      case STR:
+        return new Str(0);
+
+      case LIST:
+        return new ListCodec(type);
+
+      case CLUSTER:
+        return new ClusterCodec(type);
+
+      case ERROR:
+        return forType(Type.fromTag("is" + type.getSubtype(0).toString()));
+
+      default:
+        throw new RuntimeException("Unknown type.");
+    }
+  }
+
+  /**
+   * Compute the flattened size of data stored at the specified offset.
+   * @param buf
+   * @param ofs
+   * @param heap
+   * @param onHeapOnly if true, leave out list bodies stored off the Java heap
+   * @return
+   */
+  abstract int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly);
+
+  /**
+   * Flatten data stored at the specified offset into a ByteBuffer.
+   * @param bb
+   * @param pos
+   * @param buf
+   * @param ofs
+   * @param heap
+   * @param splices where to put off-heap list bodies; if null, they are copied
+   * @return the position just after the flattened data
+   */
+  abstract int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap,
+      Data.Splices splices);
+
+  /**
+   * Unflatten data from a ByteBuffer into the specified offset.
+   * @param bb
+   * @param pos
+   * @param buf
+   * @param ofs
+   * @param heap
+   * @param share if true, the bodies of lists with fixed-width elements are
+   *        not copied, but refer directly to the buffer, which must be a
+   *        read-only direct buffer whose contents never change
+   * @return the position just after the unflattened data
+   */
+  abstract int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap,
+      boolean share);
+
+  /**
+   * Pass the flattened form of data stored at the specified offset to a sink.
+   * @param buf
+   * @param ofs
+   * @param heap
+   * @param sink
+   */
+  abstract void scan(byte[] buf, int ofs, Heap heap, Sink sink);
+
+  /**
+   * Check whether data stored at two offsets has the same flattened form.
+   * @return
+   */
+  abstract boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap);
+
+  /**
+   * Compare ranges of bytes, each of which may be in an array or a direct buffer.
+   * @return
+   */
+  static boolean equalBytes(byte[] a, ByteBuffer aDirect, int aOfs,
+      byte[] b, ByteBuffer bDirect, int bOfs, int len) {
+    if (aDirect == null && bDirect == null) {
+      for (int i = 0; i < len; i++) {
+        if (a[aOfs + i] != b[bOfs + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    ByteBuffer aBuf = (aDirect == null) ? ByteBuffer.wrap(a, aOfs, len) : Data.slice(aDirect, aOfs, len);
+    ByteBuffer bBuf = (bDirect == null) ? ByteBuffer.wrap(b, bOfs, len) : Data.slice(bDirect, bOfs, len);
+    return aBuf.equals(bBuf);
+  }
+
+  /**
+   * Copy a range of bytes into a ByteBuffer at an absolute position.
+   * @return the position just after the copied bytes
+   */
+  static int putBytes(ByteBuffer bb, int pos, byte[] src, int ofs, int len) {
+    bb.position(pos);
+    bb.put(src, ofs, len);
+    return pos + len;
+  }
+
+  /**
+   * Copy a range of bytes out of a ByteBuffer from an absolute position.
+   * @return the position just after the copied bytes
+   */
+  static int getBytes(ByteBuffer bb, int pos, byte[] dst, int ofs, int len) {
+    bb.position(pos);
+    bb.get(dst, ofs, len);
+    return pos + len;
+  }
+
+  /**
+   * A run of fixed-width data, which is flattened by copying it directly.
+   * The run starts at the given offset from where the data is stored, so
+   * that cluster codecs can place it among their other elements.
+   */
+  private static final class Fixed extends Codec {
+    private final int offset;
+    private final int width;
+
+    Fixed(int offset, int width) {
+      this.offset = offset;
+      this.width = width;
+    }
+
+    int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly) {
+      return width;
+    }
+
+    int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, Data.Splices splices) {
+      return putBytes(bb, pos, buf, ofs + offset, width);
+    }
+
+    int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, boolean share) {
+      return getBytes(bb, pos, buf, ofs + offset, width);
+    }
+
+    void scan(byte[] buf, int ofs, Heap heap, Sink sink) {
+      sink.update(buf, ofs + offset, width);
+    }
+
+    boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap) {
+      return equalBytes(a, null, aOfs + offset, b, null, bOfs + offset, width);
+    }
+  }
+
+  /** A string, flattened as its length followed by its bytes. */
+  private static final class Str extends Codec {
+    private final int offset;
+
+    Str(int offset) {
+      this.offset = offset;
+    }
+
+    int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly) {
+      return 4 + heap.length(Bytes.getInt(buf, ofs + offset));
+    }
+
+    int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, Data.Splices splices) {
+      int h = Bytes.getInt(buf, ofs + offset);
+      int len = heap.length(h);
+      bb.putInt(pos, len);
+      return putBytes(bb, pos + 4, heap.buf(h), heap.offset(h), len);
+    }
+
+    int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, boolean share) {
+      int len = bb.getInt(pos);
+      int h = heap.allocate(len);
+      Bytes.setInt(buf, ofs + offset, h);
+      return getBytes(bb, pos + 4, heap.buf(h), heap.offset(h), len);
+    }
+
+    void scan(byte[] buf, int ofs, Heap heap, Sink sink) {
+      int h = Bytes.getInt(buf, ofs + offset);
+      if (h == UNSET) {
+        sink.updateInt(0);
+        return;
+      }
+      sink.updateInt(heap.length(h));
+      sink.update(heap.buf(h), heap.offset(h), heap.length(h));
+    }
+
+    boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap) {
+      int ha = Bytes.getInt(a, aOfs + offset);
+      int hb = Bytes.getInt(b, bOfs + offset);
+      int len = (ha == UNSET) ? 0 : aHeap.length(ha);
+      if (len != ((hb == UNSET) ? 0 : bHeap.length(hb))) {
+        return false;
+      }
+      return len == 0 ||
+          equalBytes(aHeap.buf(ha), null, aHeap.offset(ha), bHeap.buf(hb), null, bHeap.offset(hb), len);
+    }
+  }
+
+  /**
+   * A list, flattened as its shape followed by its elements.  Bodies of
+   * fixed-width elements are copied in one chunk; otherwise each element is
+   * flattened with the element codec.
+   */
+  private static final class ListCodec extends Codec {
+    private final int offset;
+    private final int depth;
+    private final int width;
+    private final Codec element; // null if elements are fixed-width
+
+    ListCodec(Type type) {
+      this(0, type);
+    }
+
+    ListCodec(int offset, Type type) {
+      Type elementType = type.getSubtype(0);
+      this.offset = offset;
+      this.depth = type.getDepth();
+      this.width = elementType.dataWidth();
+      this.element = elementType.isFixedWidth() ? null : forType(elementType);
+    }
+
+    private int getSize(byte[] buf, int ofs) {
+      int size = 1;
+      for (int i = 0; i < depth; i++) {
+        size *= Bytes.getInt(buf, ofs + 4 * i);
+      }
+      return size;
+    }
+
+    int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly) {
+      ofs += offset;
+      int size = getSize(buf, ofs);
+      int h = Bytes.getInt(buf, ofs + 4 * depth);
+      if (element == null) {
+        if (onHeapOnly && heap.direct(h) != null) {
+          return 4 * depth;
+        }
+        return 4 * depth + width * size;
+      }
+      byte[] lbuf = heap.buf(h);
+      int base = heap.offset(h);
+      int total = 4 * depth;
+      for (int i = 0; i < size; i++) {
+        total += element.size(lbuf, base + width * i, heap, onHeapOnly);
+      }
+      return total;
+    }
+
+    int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, Data.Splices splices) {
+      ofs += offset;
+      int size = getSize(buf, ofs);
+      pos = putBytes(bb, pos, buf, ofs, 4 * depth);
+      int h = Bytes.getInt(buf, ofs + 4 * depth);
+      byte[] lbuf = heap.buf(h);
+      int base = heap.offset(h);
+      if (element == null) {
+        int len = width * size;
+        ByteBuffer direct = heap.direct(h);
+        if (direct == null) {
+          return putBytes(bb, pos, lbuf, base, len);
+        }
+        if (splices == null) {
+          bb.position(pos);
+          bb.put(Data.slice(direct, 0, len));
+          return pos + len;
+        }
+        splices.add(pos, Data.slice(direct, 0, len).asReadOnlyBuffer());
+        return pos;
+      }
+      for (int i = 0; i < size; i++) {
+        pos = element.write(bb, pos, lbuf, base + width * i, heap, splices);
+      }
+      return pos;
+    }
+
+    int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, boolean share) {
+      ofs += offset;
+      pos = getBytes(bb, pos, buf, ofs, 4 * depth);
+      int size = getSize(buf, ofs);
+      int h;
+      if (element == null) {
+        int len = width * size;
+        if (share) {
+          h = heap.add(Data.slice(bb, pos, len));
+          Bytes.setInt(buf, ofs + 4 * depth, h);
+          return pos + len;
+        }
+        h = heap.allocateList(len);
+        Bytes.setInt(buf, ofs + 4 * depth, h);
+        ByteBuffer direct = heap.direct(h);
+        if (direct != null) {
+          ByteBuffer src = bb.duplicate();
+          src.limit(pos + len).position(pos);
+          Data.slice(direct, 0, len).put(src);
+          return pos + len;
+        }
+        return getBytes(bb, pos, heap.buf(h), heap.offset(h), len);
+      }
+      h = heap.allocate(width * size);
+      Bytes.setInt(buf, ofs + 4 * depth, h);
+      byte[] lbuf = heap.buf(h);
+      int base = heap.offset(h);
+      for (int i = 0; i < size; i++) {
+        pos = element.read(bb, pos, lbuf, base + width * i, heap, share);
+      }
+      return pos;
+    }
+
+    void scan(byte[] buf, int ofs, Heap heap, Sink sink) {
+      ofs += offset;
+      int size = getSize(buf, ofs);
+      sink.update(buf, ofs, 4 * depth);
+      int h = Bytes.getInt(buf, ofs + 4 * depth);
+      if (h == UNSET) {
+        return;
+      }
+      byte[] lbuf = heap.buf(h);
+      int base = heap.offset(h);
+      if (element == null) {
+        ByteBuffer direct = heap.direct(h);
+        if (direct != null) {
+          sink.update(Data.slice(direct, 0, width * size));
+        } else {
+          sink.update(lbuf, base, width * size);
+        }
+        return;
+      }
+      for (int i = 0; i < size; i++) {
+        element.scan(lbuf, base + width * i, heap, sink);
+      }
+    }
+
+    boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap) {
+      aOfs += offset;
+      bOfs += offset;
+      if (!equalBytes(a, null, aOfs, b, null, bOfs, 4 * depth)) {
+        return false;
+      }
+      int size = getSize(a, aOfs);
+      int ha = Bytes.getInt(a, aOfs + 4 * depth);
+      int hb = Bytes.getInt(b, bOfs + 4 * depth);
+      if (ha == UNSET || hb == UNSET) {
+        return ha == hb || size <= 0;
+      }
+      if (element == null) {
+        return equalBytes(aHeap.buf(ha), aHeap.direct(ha), aHeap.offset(ha),
+            bHeap.buf(hb), bHeap.direct(hb), bHeap.offset(hb), width * size);
+      }
+      byte[] alist = aHeap.buf(ha);
+      byte[] blist = bHeap.buf(hb);
+      int aBase = aHeap.offset(ha);
+      int bBase = bHeap.offset(hb);
+      for (int i = 0; i < size; i++) {
+        if (!element.equal(alist, aBase + width * i, aHeap, blist, bBase + width * i, bHeap)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A cluster with at least one variable-width element.  Each run of
+   * adjacent fixed-width elements becomes one Fixed part, and each string
+   * or list becomes a part placed at the element's offset.
+   */
+  private static final class ClusterCodec extends Codec {
+    private final Codec[] parts;
+
+    ClusterCodec(Type type) {
+      List<Codec> parts = new ArrayList<Codec>();
+      int i = 0;
+      while (i < type.size()) {
+        Type t = type.getSubtype(i);
+        int offset = type.getOffset(i);
+        if (t.isFixedWidth()) {
+          int width = 0;
+          while (i < type.size() && type.getSubtype(i).isFixedWidth()) {
+            width += type.getSubtype(i).dataWidth();
+            i++;
+          }
+          if (width > 0) {
+            parts.add(new Fixed(offset, width));
+          }
+          continue;
+        }
+        parts.add(buildAt(offset, t));
+        i++;
+      }
+      this.parts = parts.toArray(new Codec[parts.size()]);
+    }
+
+    /**
+     * Build a codec for a variable-width element at the given offset.
+     */
+    private static Codec buildAt(int offset, Type type) {
+      switch (type.getCode()) {
+        case STR: return new Str(offset);
+        case LIST: return new ListCodec(offset, type);
+        default: return new Shifted(offset, forType(type));
+      }
+    }
+
+    int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly) {
+      int total = 0;
+      for (Codec part : parts) {
+        total += part.size(buf, ofs, heap, onHeapOnly);
+      }
+      return total;
+    }
+
+    int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, Data.Splices splices) {
+      for (Codec part : parts) {
+        pos = part.write(bb, pos, buf, ofs, heap, splices);
+      }
+      return pos;
+    }
+
+    int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, boolean share) {
+      for (Codec part : parts) {
+        pos = part.read(bb, pos, buf, ofs, heap, share);
+      }
+      return pos;
+    }
+
+    void scan(byte[] buf, int ofs, Heap heap, Sink sink) {
+      for (Codec part : parts) {
+        part.scan(buf, ofs, heap, sink);
+      }
+    }
+
+    boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap) {
+      for (Codec part : parts) {
+        if (!part.equal(a, aOfs, aHeap, b, bOfs, bHeap)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Another codec, applied at an offset, for nested clusters and errors. */
+  private static final class Shifted extends Codec {
+    private final int offset;
+    private final Codec codec;
+
+    Shifted(int offset, Codec codec) {
+      this.offset = offset;
+      this.codec = codec;
+    }
+
+    int size(byte[] buf, int ofs, Heap heap, boolean onHeapOnly) {
+      return codec.size(buf, ofs + offset, heap, onHeapOnly);
+    }
+
+    int write(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, Data.Splices splices) {
+      return codec.write(bb, pos, buf, ofs + offset, heap, splices);
+    }
+
+    int read(ByteBuffer bb, int pos, byte[] buf, int ofs, Heap heap, boolean share) {
+      return codec.read(bb, pos, buf, ofs + offset, heap, share);
+    }
+
+    void scan(byte[] buf, int ofs, Heap heap, Sink sink) {
+      codec.scan(buf, ofs + offset, heap, sink);
+    }
+
+    boolean equal(byte[] a, int aOfs, Heap aHeap, byte[] b, int bOfs, Heap bHeap) {
+      return codec.equal(a, aOfs + offset, aHeap, b, bOfs + offset, bHeap);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    // round trip random data through the codecs
+    Hydrant.random = new Random(0);
+    List<Data> samples = new ArrayList<Data>();
+    for (int i = 0; i < 1000; i++) {
+      Data d = Hydrant.getRandomData();
+      byte[] flat = d.toBytes();
+      assert flat.length == d.flattenedSize();
+      Data back = Data.fromBytes(flat, d.getType());
+      assert Arrays.equals(flat, back.toBytes());
+      assert d.pretty().equals(back.pretty());
+      samples.add(d);
+    }
+    assert forType(Type.fromTag("(is)")) == forType(Type.fromTag("E"));
+
+    // equality and hashing agree with the flattened bytes
+    for (int i = 0; i < samples.size(); i++) {
+      Data d = samples.get(i);
+      Data back = Data.fromBytes(d.toBytes(), d.getType());
+      assert d.equals(back) && back.equals(d) && d.equals(back.clone());
+      assert d.hashCode() == back.hashCode() && d.hashCode() == back.clone().hashCode();
+      assert d.hashCode() == 31 * d.getTag().hashCode() + Arrays.hashCode(d.toBytes());
+      assert Arrays.equals(d.digest(), back.clone().digest());
+      Data other = samples.get((i + 1) % samples.size());
+      assert d.equals(other) ==
+          (d.getType() == other.getType() && Arrays.equals(d.toBytes(), other.toBytes()));
+    }
+    System.out.println("Codecs okay.");
+
+    // time flattening and unflattening of the random data
+    List<byte[]> flats = new ArrayList<byte[]>();
+    for (Data d : samples) {
+      flats.add(d.toBytes());
+    }
+    int reps = 50;
+    for (int rep = 0; rep < 3; rep++) {
+      long start = System.nanoTime();
+      for (int k = 0; k < reps; k++) {
+        for (Data d : samples) {
+          d.toBytes();
+        }
+      }
+      long mid = System.nanoTime();
+      for (int k = 0; k < reps; k++) {
+        for (int i = 0; i < samples.size(); i++) {
+          Data.fromBytes(flats.get(i), samples.get(i).getType());
+        }
+      }
+      long end = System.nanoTime();
+      double n = reps * samples.size();
+      System.out.println(String.format("flatten: %.3f us, unflatten: %.3f us",
+          (mid - start) / n / 1000, (end - mid) / n / 1000));
+    }
+  }
+}
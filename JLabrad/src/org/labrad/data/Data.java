@@ -21,14 +21,29 @@ package org.labrad.data;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import org.labrad.errors.NonIndexableTypeException;
@@ -59,16 +74,178 @@ public class Data implements Serializable, Cloneable {
   private Type type;
   private byte[] data;
   private int ofs;
-  private List<byte[]> heap;
+  private Heap heap;
+
+  // for a view into a list body stored off the Java heap, the buffer
+  // holding the data, in place of the data array
+  private ByteBuffer direct;
+
+  // flattened bytes of a lazily-decoded object; null once decoded.
+  // This and source are volatile, and are cleared only after the decoded
+  // data and heap have been stored, so that a thread that sees them
+  // cleared also sees the decoded data; see decode.
+  private volatile byte[] raw;
+  private int rawOfs;
+  private int rawLen;
+
+  // for a streamed list, the source of its elements and its shape;
+  // null once the list has been built in memory
+  private transient volatile ListWriter.Source source;
+  private int[] sourceShape;
+
+  // for data returned by freeze, its flattened bytes, computed when first needed
+  private boolean frozen;
+  private transient volatile byte[] frozenBytes;
+
+  // for frozen data, its content hash and digest, computed when first needed
+  private transient int hash;
+  private transient volatile byte[] frozenDigest;
+
+  /** Cached indexing information for this list; see getStrides. */
+  private transient Strides strides;
 
   /**
-   * Make a copy of this Data object.
+   * Make a copy of this Data object.  The bytes of the data and of each
+   * string and list body are copied directly, without going through the
+   * typed getters and setters.  Data that has not yet been decoded is
+   * not decoded, since its flattened bytes can be shared.
    */
   @Override
   public Data clone() {
-    Data clone = new Data(this.getType());
-    copy(this, clone);
-    return clone;
+    ListWriter.Source source = this.source;
+    if (source != null) {
+      return streamList(type, source, sourceShape);
+    }
+    byte[] raw = this.raw;
+    if (raw != null) {
+      return fromBytesLazy(raw, rawOfs, rawLen, type);
+    }
+    byte[] buf = new byte[type.dataWidth()];
+    Heap heap = createHeap(type, buf);
+    copyRaw(type, data, direct, ofs, this.heap, buf, null, 0, heap);
+    return new Data(type, buf, 0, heap);
+  }
+
+  /**
+   * Copy data of the given type from one place to another, which may be in
+   * a different heap.  Fixed-width data is copied as a block of bytes, and
+   * each string and list body is copied into a new piece of the destination
+   * heap.  The source or destination may be stored off the Java heap only if
+   * the type is fixed-width, as for elements of off-heap list bodies.
+   */
+  private static void copyRaw(Type type,
+      byte[] src, ByteBuffer srcDirect, int srcOfs, Heap srcHeap,
+      byte[] dst, ByteBuffer dstDirect, int dstOfs, Heap dstHeap) {
+    if (type.isFixedWidth()) {
+      copyBytes(src, srcDirect, srcOfs, dst, dstDirect, dstOfs, type.dataWidth());
+      return;
+    }
+    switch (type.getCode()) {
+      case STR:
+        int h = Bytes.getInt(src, srcOfs);
+        if (h == -1) {
+          Bytes.setInt(dst, dstOfs, -1);
+          break;
+        }
+        int len = srcHeap.length(h);
+        int h2 = dstHeap.allocate(len);
+        System.arraycopy(srcHeap.buf(h), srcHeap.offset(h),
+            dstHeap.buf(h2), dstHeap.offset(h2), len);
+        Bytes.setInt(dst, dstOfs, h2);
+        break;
+
+      case LIST:
+        int depth = type.getDepth();
+        Type elementType = type.getSubtype(0);
+        int width = elementType.dataWidth();
+        h = Bytes.getInt(src, srcOfs + 4 * depth);
+        System.arraycopy(src, srcOfs, dst, dstOfs, 4 * depth);
+        if (h == -1) {
+          Bytes.setInt(dst, dstOfs + 4 * depth, -1);
+          break;
+        }
+        int size = 1;
+        for (int i = 0; i < depth; i++) {
+          size *= Bytes.getInt(src, srcOfs + 4 * i);
+        }
+        if (elementType.isFixedWidth()) {
+          h2 = dstHeap.allocateList(width * size);
+          copyBytes(srcHeap.buf(h), srcHeap.direct(h), srcHeap.offset(h),
+              dstHeap.buf(h2), dstHeap.direct(h2), dstHeap.offset(h2), width * size);
+        } else {
+          h2 = dstHeap.allocate(width * size);
+          byte[] lsrc = srcHeap.buf(h), ldst = dstHeap.buf(h2);
+          int srcBase = srcHeap.offset(h), dstBase = dstHeap.offset(h2);
+          for (int i = 0; i < size; i++) {
+            copyRaw(elementType, lsrc, null, srcBase + width * i, srcHeap,
+                ldst, null, dstBase + width * i, dstHeap);
+          }
+        }
+        Bytes.setInt(dst, dstOfs + 4 * depth, h2);
+        break;
+
+      case CLUSTER:
+        for (int i = 0; i < type.size(); i++) {
+          copyRaw(type.getSubtype(i), src, null, srcOfs + type.getOffset(i), srcHeap,
+              dst, null, dstOfs + type.getOffset(i), dstHeap);
+        }
+        break;
+
+      case ERROR:
+        copyRaw(Type.fromTag("is" + type.getSubtype(0).toString()),
+            src, null, srcOfs, srcHeap, dst, null, dstOfs, dstHeap);
+        break;
+
+      default:
+        throw new RuntimeException("Unknown type.");
+    }
+  }
+
+  /**
+   * Copy bytes between arrays or direct buffers.
+   */
+  private static void copyBytes(byte[] src, ByteBuffer srcDirect, int srcOfs,
+      byte[] dst, ByteBuffer dstDirect, int dstOfs, int len) {
+    if (srcDirect == null && dstDirect == null) {
+      System.arraycopy(src, srcOfs, dst, dstOfs, len);
+    } else if (srcDirect == null) {
+      slice(dstDirect, dstOfs, len).put(src, srcOfs, len);
+    } else if (dstDirect == null) {
+      slice(srcDirect, srcOfs, len).get(dst, dstOfs, len);
+    } else {
+      slice(dstDirect, dstOfs, len).put(slice(srcDirect, srcOfs, len));
+    }
+  }
+
+  /**
+   * Indicates whether data of two types is laid out in the same way, so
+   * that it can be copied directly from one to the other.  Units are ignored.
+   */
+  private static boolean sameLayout(Type a, Type b) {
+    if (a == b) {
+      return true;
+    }
+    if (a.getCode() != b.getCode()) {
+      return false;
+    }
+    switch (a.getCode()) {
+      case LIST:
+        return a.getDepth() == b.getDepth() && sameLayout(a.getSubtype(0), b.getSubtype(0));
+      case CLUSTER:
+        if (a.size() != b.size()) {
+          return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+          if (!sameLayout(a.getSubtype(i), b.getSubtype(i))) {
+            return false;
+          }
+        }
+        return true;
+      case ERROR:
+        return sameLayout(a.getSubtype(0), b.getSubtype(0));
+      default:
+        return true;
+    }
   }
 
   /**
@@ -224,45 +401,40 @@ public class Data implements Serializable, Cloneable {
   public static Data valueOf(boolean[] a) {
     Data data = Data.ofType("*b");
     data.setArraySize(a.length);
-    for (int i = 0; i < a.length; i++) {
-      data.setBool(a[i], i);
-    }
+    ByteArrayView buf = data.getListBytes(Type.Code.BOOL, 1);
+    Bytes.setBools(buf, 0, a, 0, a.length);
     return data;
   }
 
   public static Data valueOf(int[] a) {
     Data data = Data.ofType("*i");
     data.setArraySize(a.length);
-    for (int i = 0; i < a.length; i++) {
-      data.setInt(a[i], i);
-    }
+    ByteArrayView buf = data.getListBytes(Type.Code.INT, 1);
+    Bytes.setInts(buf, 0, a, 0, a.length);
     return data;
   }
 
   public static Data valueOf(long[] a) {
     Data data = Data.ofType("*w");
     data.setArraySize(a.length);
-    for (int i = 0; i < a.length; i++) {
-      data.setWord(a[i], i);
-    }
+    ByteArrayView buf = data.getListBytes(Type.Code.WORD, 1);
+    Bytes.setWords(buf, 0, a, 0, a.length);
     return data;
   }
 
   public static Data valueOf(double[] a) {
     Data data = Data.ofType("*v");
     data.setArraySize(a.length);
-    for (int i = 0; i < a.length; i++) {
-      data.setValue(a[i], i);
-    }
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 1);
+    Bytes.setDoubles(buf, 0, a, 0, a.length);
     return data;
   }
 
   public static Data valueOf(double[] a, String units) {
     Data data = Data.ofType("*v[" + units + "]");
     data.setArraySize(a.length);
-    for (int i = 0; i < a.length; i++) {
-      data.setValue(a[i], i);
-    }
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 1);
+    Bytes.setDoubles(buf, 0, a, 0, a.length);
     return data;
   }
 
@@ -275,81 +447,143 @@ public class Data implements Serializable, Cloneable {
     return data;
   }
   
-  /*
+  // static constructors for arrays of times
   public static Data valueOf(Date[] t) {
-    return new Data("t").setTime(t);
+    Data data = Data.ofType("*t");
+    data.setArraySize(t.length);
+    ByteArrayView buf = data.getListBytes(Type.Code.TIME, 1);
+    for (int i = 0; i < t.length; i++) {
+      setTime(buf.getBytes(), buf.getBuffer(), buf.getOffset() + 16 * i, t[i]);
+    }
+    return data;
+  }
+
+  /**
+   * Create a list of times from nanoseconds since the Java epoch,
+   * Jan 1, 1970 GMT.
+   * @param nanos
+   * @return
+   */
+  public static Data valueOfTimeNanos(long[] nanos) {
+    Data data = Data.ofType("*t");
+    data.setArraySize(nanos.length);
+    return data.setTimeNanosArray(nanos);
   }
 
+  // static constructors for arrays of complex numbers
   public static Data valueOf(double[] re, double[] im) {
-  	return new Data("c").setComplex(re, im);
+    return complexArray("*c", re.length).setComplexSplit(re, im);
   }
+
   public static Data valueOf(double[] re, double[] im, String units) {
-  	return new Data("c[" + units + "]").setComplex(re, im);
+    return complexArray("*c[" + units + "]", re.length).setComplexSplit(re, im);
+  }
+
+  /**
+   * Create a list of complex numbers from an array holding the real and
+   * imaginary parts of each number in turn.
+   * @param interleaved
+   * @return
+   */
+  public static Data valueOfComplex(double[] interleaved) {
+    return complexArray("*c", interleaved.length / 2).setComplexInterleaved(interleaved);
+  }
+
+  public static Data valueOfComplex(double[] interleaved, String units) {
+    return complexArray("*c[" + units + "]", interleaved.length / 2)
+        .setComplexInterleaved(interleaved);
+  }
+
+  public static Data valueOf(double[][] re, double[][] im) {
+    return complexArray2D("*2c", re, im);
+  }
+
+  public static Data valueOf(double[][] re, double[][] im, String units) {
+    return complexArray2D("*2c[" + units + "]", re, im);
+  }
+
+  private static Data complexArray(String tag, int size) {
+    Data data = Data.ofType(tag);
+    data.setArraySize(size);
+    return data;
+  }
+
+  private static Data complexArray2D(String tag, double[][] re, double[][] im) {
+    Data data = Data.ofType(tag);
+    int[] shape = getRectangularShape(re, 2);
+    if (!Arrays.equals(shape, getRectangularShape(im, 2))) {
+      throw new RuntimeException("Real and imaginary parts must have the same shape.");
+    }
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.COMPLEX, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      setComplexSplit(buf, 16 * shape[1] * i, re[i], im[i], 0, shape[1]);
+    }
+    return data;
   }
-  */
 
   //static constructors for 2D arrays of basic types
-  // TODO ensure that 2D and 3D arrays are rectangular
   public static Data valueOf(boolean[][] a) {
     Data data = Data.ofType("*2b");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        data.setBool(a[i][j], i, j);
-      }
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.BOOL, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.setBools(buf, shape[1] * i, a[i], 0, shape[1]);
     }
     return data;
   }
 
   public static Data valueOf(int[][] a) {
     Data data = Data.ofType("*2i");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        data.setInt(a[i][j], i, j);
-      }
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.INT, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.setInts(buf, 4 * shape[1] * i, a[i], 0, shape[1]);
     }
     return data;
   }
 
   public static Data valueOf(long[][] a) {
     Data data = Data.ofType("*2w");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        data.setWord(a[i][j], i, j);
-      }
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.WORD, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.setWords(buf, 4 * shape[1] * i, a[i], 0, shape[1]);
     }
     return data;
   }
 
   public static Data valueOf(double[][] a) {
     Data data = Data.ofType("*2v");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        data.setValue(a[i][j], i, j);
-      }
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.setDoubles(buf, 8 * shape[1] * i, a[i], 0, shape[1]);
     }
     return data;
   }
 
   public static Data valueOf(double[][] a, String units) {
     Data data = Data.ofType("*2v[" + units + "]");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        data.setValue(a[i][j], i, j);
-      }
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 2);
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.setDoubles(buf, 8 * shape[1] * i, a[i], 0, shape[1]);
     }
     return data;
   }
 
   public static Data valueOf(String[][] a) {
     Data data = Data.ofType("*2s");
-    data.setArrayShape(a.length, a.length > 0 ? a[0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
+    int[] shape = getRectangularShape(a, 2);
+    data.setArrayShape(shape);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
         data.setString(a[i][j], i, j);
       }
     }
@@ -360,14 +594,12 @@ public class Data implements Serializable, Cloneable {
   //static constructors for 3D arrays of basic types
   public static Data valueOf(boolean[][][] a) {
     Data data = Data.ofType("*3b");
-    data.setArrayShape(a.length,
-                       a.length > 0 ? a[0].length : 0,
-                       a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
-          data.setBool(a[i][j][k], i, j, k);
-        }
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.BOOL, 3);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.setBools(buf, shape[2] * (shape[1] * i + j), a[i][j], 0, shape[2]);
       }
     }
     return data;
@@ -375,14 +607,12 @@ public class Data implements Serializable, Cloneable {
 
   public static Data valueOf(int[][][] a) {
     Data data = Data.ofType("*3i");
-    data.setArrayShape(a.length,
-        a.length > 0 ? a[0].length : 0,
-        a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
-          data.setInt(a[i][j][k], i, j, k);
-        }
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.INT, 3);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.setInts(buf, 4 * shape[2] * (shape[1] * i + j), a[i][j], 0, shape[2]);
       }
     }
     return data;
@@ -390,14 +620,12 @@ public class Data implements Serializable, Cloneable {
 
   public static Data valueOf(long[][][] a) {
     Data data = Data.ofType("*3w");
-    data.setArrayShape(a.length,
-        a.length > 0 ? a[0].length : 0,
-        a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
-          data.setWord(a[i][j][k], i, j, k);
-        }
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.WORD, 3);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.setWords(buf, 4 * shape[2] * (shape[1] * i + j), a[i][j], 0, shape[2]);
       }
     }
     return data;
@@ -405,14 +633,12 @@ public class Data implements Serializable, Cloneable {
 
   public static Data valueOf(double[][][] a) {
     Data data = Data.ofType("*3v");
-    data.setArrayShape(a.length,
-        a.length > 0 ? a[0].length : 0,
-        a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
-          data.setValue(a[i][j][k], i, j, k);
-        }
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 3);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.setDoubles(buf, 8 * shape[2] * (shape[1] * i + j), a[i][j], 0, shape[2]);
       }
     }
     return data;
@@ -420,14 +646,12 @@ public class Data implements Serializable, Cloneable {
 
   public static Data valueOf(double[][][] a, String units) {
     Data data = Data.ofType("*3v[" + units + "]");
-    data.setArrayShape(a.length,
-        a.length > 0 ? a[0].length : 0,
-        a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
-          data.setValue(a[i][j][k], i, j, k);
-        }
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    ByteArrayView buf = data.getListBytes(Type.Code.VALUE, 3);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.setDoubles(buf, 8 * shape[2] * (shape[1] * i + j), a[i][j], 0, shape[2]);
       }
     }
     return data;
@@ -435,18 +659,124 @@ public class Data implements Serializable, Cloneable {
 
   public static Data valueOf(String[][][] a) {
     Data data = Data.ofType("*3s");
-    data.setArrayShape(a.length,
-        a.length > 0 ? a[0].length : 0,
-        a.length > 0 && a[0].length > 0 ? a[0][0].length : 0);
-    for (int i = 0; i < a.length; i++) {
-      for (int j = 0; j < a[0].length; j++) {
-        for (int k = 0; k < a[0][0].length; k++) {
+    int[] shape = getRectangularShape(a, 3);
+    data.setArrayShape(shape);
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        for (int k = 0; k < shape[2]; k++) {
           data.setString(a[i][j][k], i, j, k);
         }
       }
     }
     return data;
   }
+
+  // static constructors for lists of clusters, from one array per field
+
+  /**
+   * Build a list of clusters from columns, with one primitive array per
+   * cluster field: boolean[] for b, int[] for i, long[] for w and double[]
+   * for v.  The arrays must all have the same length, which becomes the
+   * length of the list.  For example, passing a long[] and two double[]
+   * columns creates data of type *(wvv).
+   * @param columns
+   * @return
+   */
+  public static Data columnsOf(Object... columns) {
+    StringBuilder tag = new StringBuilder("*(");
+    for (Object column : columns) {
+      tag.append(getColumnTag(column));
+    }
+    tag.append(")");
+    return fillColumns(Data.ofType(tag.toString()), columns);
+  }
+
+  /**
+   * Build a list of clusters of values, of type *(v...), from columns.
+   * @param columns
+   * @return
+   */
+  public static Data valueOfColumns(double[]... columns) {
+    return columnsOf((Object[]) columns);
+  }
+
+  /**
+   * Build a list of clusters of values with units, from columns.
+   * @param units the units of each column
+   * @param columns
+   * @return
+   */
+  public static Data valueOfColumns(String[] units, double[]... columns) {
+    if (units.length != columns.length) {
+      throw new RuntimeException("Expected units for " + columns.length +
+          " columns but got " + units.length + ".");
+    }
+    StringBuilder tag = new StringBuilder("*(");
+    for (String u : units) {
+      tag.append("v[").append(u).append("]");
+    }
+    tag.append(")");
+    return fillColumns(Data.ofType(tag.toString()), (Object[]) columns);
+  }
+
+  private static String getColumnTag(Object column) {
+    if (column instanceof boolean[]) return "b";
+    if (column instanceof int[]) return "i";
+    if (column instanceof long[]) return "w";
+    if (column instanceof double[]) return "v";
+    throw new RuntimeException("Cannot make a column from " +
+        (column == null ? "null" : column.getClass().getSimpleName()) + ".");
+  }
+
+  /**
+   * Set the size of a list of clusters and copy columns into its fields.
+   */
+  private static Data fillColumns(Data data, Object[] columns) {
+    int rows = columns.length == 0 ? 0 : Array.getLength(columns[0]);
+    for (Object column : columns) {
+      if (Array.getLength(column) != rows) {
+        throw new RuntimeException("Columns must all have the same length.");
+      }
+    }
+    data.setArraySize(rows);
+    Type cluster = data.type.getSubtype(0);
+    ByteArrayView buf = data.getListBuffer();
+    int stride = cluster.dataWidth();
+    for (int j = 0; j < columns.length; j++) {
+      setColumn(buf, cluster.getOffset(j), stride, columns[j]);
+    }
+    return data;
+  }
+
+  /**
+   * Get the shape of a multidimensional java array, checking that it is
+   * rectangular, that is, that all rows at each level have the same length.
+   * @param array
+   * @param depth
+   * @return
+   */
+  private static int[] getRectangularShape(Object[] array, int depth) {
+    int[] shape = new int[depth];
+    Object row = array;
+    for (int level = 0; level < depth; level++) {
+      shape[level] = Array.getLength(row);
+      if (shape[level] == 0) break;
+      if (level < depth - 1) row = ((Object[]) row)[0];
+    }
+    checkRectangular(array, shape, 0);
+    return shape;
+  }
+
+  private static void checkRectangular(Object array, int[] shape, int level) {
+    if (Array.getLength(array) != shape[level]) {
+      throw new RuntimeException("Array is not rectangular.");
+    }
+    if (level < shape.length - 1) {
+      for (Object row : (Object[]) array) {
+        checkRectangular(row, shape, level + 1);
+      }
+    }
+  }
   
   
   // static constructors for specific types
@@ -478,7 +808,7 @@ public class Data implements Serializable, Cloneable {
     this.type = type;
     data = createFilledByteArray(type.dataWidth());
     ofs = 0;
-    heap = createHeap(type);
+    heap = createHeap(type, data);
   }
 
   /**
@@ -497,147 +827,471 @@ public class Data implements Serializable, Cloneable {
    * @param heap
    *            storage for pieces of variable-length data
    */
-  private Data(Type type, byte[] data, int ofs, List<byte[]> heap) {
+  Data(Type type, byte[] data, int ofs, Heap heap) {
+    this(type, data, null, ofs, heap);
+  }
+
+  /**
+   * Construct a view into data that may be stored off the Java heap.
+   * If direct is not null, it holds the data and the data array is null.
+   */
+  Data(Type type, byte[] data, ByteBuffer direct, int ofs, Heap heap) {
     this.type = type;
     this.data = data;
+    this.direct = direct;
     this.ofs = ofs;
     this.heap = heap;
   }
 
   /**
-   * Creates a byte array of the specified length filled with 0xff.
-   * This is used to mark pointers into the heap so we know when we can
-   * reuse heap addresses.  By initializing the byte array with 0xff,
-   * all heap addresses will initially be set to -1, which is never
-   * a valid heap index.
-   * @param length of byte array to create
-   * @return array of bytes initialized with 0xff
+   * Create a Data object that holds flattened bytes and only unflattens
+   * them when its contents are first accessed.  Until then, the type is
+   * available, and the data can be flattened again by copying the original
+   * bytes, so objects that are just passed along never need to be decoded.
+   * The given bytes must not be modified afterward.
+   * 
+   * @param buf
+   * @param ofs
+   * @param len
+   * @param type
+   * @return
    */
-  private static byte[] createFilledByteArray(int length) {
-    byte[] data = new byte[length];
-    Arrays.fill(data, (byte) 0xff);
+  public static Data fromBytesLazy(byte[] buf, int ofs, int len, Type type) {
+    Data data = new Data(type, null, 0, null);
+    data.raw = buf;
+    data.rawOfs = ofs;
+    data.rawLen = len;
     return data;
   }
 
   /**
-   * Create a new heap object for data of the given type.  If the type in
-   * question is fixed width, then no heap is needed, so we use an empty list.
-   * @param type
+   * Create data for a list of fixed-width elements whose contents are not
+   * stored, but are written by the given source whenever the data is
+   * flattened.  When such data is sent in a packet, the elements are
+   * encoded straight into the output stream, so very large lists can be
+   * sent with a small, fixed amount of memory.  Because of this, a source
+   * that fails while the data is being sent leaves a partial packet behind,
+   * and the connection is closed.  If the contents are accessed in any
+   * other way, the source is called once to build the list in memory.
+   * 
+   * @param type the type of the list, which must have fixed-width elements
+   * @param source
+   * @param shape
    * @return
    */
-  private static List<byte[]> createHeap(Type type) {
-    List<byte[]> heap;
-    if (type.isFixedWidth()) {
-      heap = Collections.emptyList();
-    } else {
-      heap = new ArrayList<byte[]>();
-    }
-    return heap;
+  public static Data streamList(Type type, ListWriter.Source source, int... shape) {
+    ListWriter.flattenedSize(type, shape); // check type and shape
+    Data data = new Data(type, null, 0, null);
+    data.source = source;
+    data.sourceShape = shape.clone();
+    return data;
+  }
+
+  public static Data streamList(String tag, ListWriter.Source source, int... shape) {
+    return streamList(Type.fromTag(tag), source, shape);
   }
 
   /**
-   * Get the LabRAD type of this data object, as a Type object.
-   * 
-   * @return
+   * Build streamed lists in memory before serializing, since the source
+   * is not serialized.
    */
-  public Type getType() {
-    return type;
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    decode();
+    out.defaultWriteObject();
   }
 
   /**
-   * Test whether this data object matches the given type.
+   * Indicates whether this is a streamed list whose elements have not been
+   * built in memory.
+   * @return
    */
-  public boolean matchesType(Type type) {
-    return getType().matches(type);
+  public boolean isStreamed() {
+    return source != null;
   }
 
-  public boolean matchesType(String tag) {
-    return getType().matches(tag);
+  /**
+   * Indicates whether the contents of this object have been unflattened.
+   * This is false only for lazily-decoded objects and streamed lists that
+   * have not yet been accessed.
+   * @return
+   */
+  public boolean isDecoded() {
+    return raw == null && source == null;
   }
 
   /**
-   * Get the LabRAD type tag string of this data object.
+   * Unflatten the contents of a lazily-decoded object, if that has not yet been done,
+   * and check that the data has not been released.
+   * This must be called before accessing the data buffer or heap.
    * 
-   * @return
+   * Several threads may read the same lazily-decoded object, as they could
+   * before decoding was made lazy, so decoding happens at most once, under
+   * a lock.  Changing data from several threads still requires external
+   * synchronization, as for any other Data object.
    */
-  public String getTag() {
-    return type.toString();
+  private void decode() {
+    if (source != null || raw != null) {
+      unflatten();
+    }
+    heap.checkLive();
   }
 
   /**
-   * Flatten LabRAD data into an array of bytes, suitable for sending over the wire.
+   * Check that the data has not been released, without decoding it.
+   * Lazily-decoded objects and streamed lists have no heap until they
+   * are decoded, and so cannot have been released.
    */
-  public byte[] toBytes() throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
-    toBytes(os, type, data, ofs, heap);
-    return os.toByteArray();
+  private void checkLive() {
+    Heap heap = this.heap;
+    if (heap != null) {
+      heap.checkLive();
+    }
+  }
+
+  private synchronized void unflatten() {
+    byte[] raw = this.raw;
+    int rawOfs = this.rawOfs;
+    int rawLen = this.rawLen;
+    if (source != null) {
+      raw = new byte[flattenedSize()];
+      writeTo(ByteBuffer.wrap(raw));
+      rawOfs = 0;
+      rawLen = raw.length;
+    } else if (raw == null) {
+      return; // another thread got here first
+    }
+    byte[] buf = new byte[type.dataWidth()];
+    Heap heap = createHeap(type, buf);
+    int end = Codec.forType(type).read(ByteBuffer.wrap(raw), rawOfs, buf, 0, heap, false);
+    if (end != rawOfs + rawLen) {
+      throw new RuntimeException("Flattened data has wrong length for type '" + type + "'.");
+    }
+    this.data = buf;
+    this.ofs = 0;
+    this.heap = heap;
+    // publish the decoded data by clearing the volatile fields last
+    this.raw = null;
+    this.source = null;
   }
 
   /**
-   * Flatten LabRAD data into the specified ByteArrayOutputStream.
+   * Free strings and list buffers that have been replaced by later calls
+   * to setters such as setString or setArrayShape, and so are no longer part
+   * of this data.  Such orphaned buffers are also freed automatically once
+   * they make up a large part of the data, but objects that are modified
+   * many times over a long life can call this to free them sooner.
    * 
-   * Start flattening the specified buffer at some offset, using the given heap
-   * for variable-length data chunks, and the Type object to specify how the
-   * bytes are to be interpreted.
+   * This applies to the entire data object, even if called on a view.  Views
+   * into live parts of the data remain valid; views into parts that have
+   * been replaced must not be used afterward.
    * 
-   * @param os
-   * @param type 
-   * @param buf
-   * @param ofs
-   * @param heap
-   * @throws IOException if writing to the output stream fails
+   * @return the number of bytes reclaimed
    */
-  private static void toBytes(ByteArrayOutputStream os, Type type,
-      byte[] buf, int ofs, List<byte[]> heap) throws IOException {
-    if (type.isFixedWidth()) {
-      os.write(buf, ofs, type.dataWidth());
-    } else {
-      switch (type.getCode()) {
-        case STR:
-          byte[] sbuf = heap.get(Bytes.getInt(buf, ofs));
-          Bytes.writeInt(os, sbuf.length);
-          os.write(sbuf);
-          break;
+  public long compact() {
+    decode();
+    if (heap.isReadOnly()) {
+      return 0; // read-only data is never modified, so has nothing to reclaim
+    }
+    return heap.compact();
+  }
 
-        case LIST:
-          int depth = type.getDepth();
-          Type elementType = type.getSubtype(0);
-          // compute total number of elements in the list
-          int size = 1;
-          for (int i = 0; i < depth; i++) {
-            size *= Bytes.getInt(buf, ofs + 4 * i);
-          }
-          // write the list shape
-          os.write(buf, ofs, 4 * depth);
-          // write the list data
-          byte[] lbuf = heap.get(Bytes.getInt(buf, ofs + 4 * depth));
-          if (elementType.isFixedWidth()) {
-            // for fixed-width data, just copy in one big chunk
-            os.write(lbuf, 0, elementType.dataWidth() * size);
-          } else {
-            // for variable-width data, flatten recursively
-            int width = elementType.dataWidth();
-            for (int i = 0; i < size; i++) {
-              toBytes(os, elementType, lbuf, width * i, heap);
-            }
-          }
-          break;
+  /**
+   * Set the size in bytes at or above which the bodies of lists with
+   * fixed-width elements, such as *v or *2i, are stored off the Java heap
+   * in direct buffers.  This applies to lists created or unflattened after
+   * the call.  Keeping very large arrays out of the heap avoids long garbage
+   * collection pauses.  The getters and setters work the same either way.
+   * By default, lists are never stored off the heap.
+   * 
+   * @param bytes
+   */
+  public static void setDirectThreshold(int bytes) {
+    Heap.setDirectThreshold(bytes);
+  }
 
-        case CLUSTER:
-          for (int i = 0; i < type.size(); i++) {
-            toBytes(os, type.getSubtype(i), buf, ofs + type.getOffset(i), heap);
-          }
-          break;
+  public static int getDirectThreshold() {
+    return Heap.getDirectThreshold();
+  }
 
-        case ERROR:
-          String tag = "is" + type.getSubtype(0).toString();
-          toBytes(os, Type.fromTag(tag), buf, ofs, heap);
-          break;
+  /**
+   * Release any off-heap storage used by this data object, returning it to
+   * a pool to be reused by other large lists.  This applies to the entire
+   * data object, even if called on a view from get.  Afterward, any attempt
+   * to use the object or views into it, including those from row, slice and
+   * reshape, throws IllegalStateException.  Views from row, slice and reshape
+   * do not own their storage, so releasing one of them does nothing; only
+   * the data they were taken from can free it.  Objects that are not
+   * released explicitly have their storage freed by the garbage collector
+   * as usual.  Fixed-width data share a single empty heap, which is never
+   * released.
+   */
+  public void release() {
+    decode();
+    if (heap != Heap.EMPTY && !heap.isView()) {
+      heap.release();
+    }
+  }
 
-        default:
-          throw new RuntimeException("Unknown type.");
+  /**
+   * Creates a byte array of the specified length filled with 0xff.
+   * This is used to mark pointers into the heap so we know when we can
+   * reuse heap addresses.  By initializing the byte array with 0xff,
+   * all heap addresses will initially be set to -1, which is never
+   * a valid heap index.
+   * @param length of byte array to create
+   * @return array of bytes initialized with 0xff
+   */
+  private static byte[] createFilledByteArray(int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) 0xff);
+    return data;
+  }
+
+  /**
+   * Creates a direct buffer of the specified length filled with 0xff,
+   * like createFilledByteArray, for list bodies stored off the heap.
+   * @param length
+   * @return
+   */
+  private static ByteBuffer createFilledDirectBuffer(int length) {
+    ByteBuffer buf = Heap.allocateDirect(length);
+    byte[] fill = createFilledByteArray(Math.min(length, 8192));
+    ByteBuffer dup = buf.duplicate();
+    while (dup.hasRemaining()) {
+      dup.put(fill, 0, Math.min(fill.length, dup.remaining()));
+    }
+    return buf;
+  }
+
+  /**
+   * Create a new heap object for data of the given type.  If the type in
+   * question is fixed width, then no heap is needed, so we use an empty one.
+   * @param type
+   * @param root buffer holding the fixed-width part of the data
+   * @return
+   */
+  private static Heap createHeap(Type type, byte[] root) {
+    return type.isFixedWidth() ? Heap.EMPTY : new Heap(type, root);
+  }
+
+  /**
+   * Get the LabRAD type of this data object, as a Type object.
+   * 
+   * @return
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Test whether this data object matches the given type.
+   */
+  public boolean matchesType(Type type) {
+    return getType().matches(type);
+  }
+
+  /**
+   * Data objects are equal if they have the same type and the same
+   * flattened bytes.  The comparison walks both objects without
+   * flattening either of them.  Note that data used as a key in a map
+   * must not be changed while it is in the map; freeze it first.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof Data)) {
+      return false;
+    }
+    Data other = (Data) obj;
+    if (type != other.type) {
+      return false;
+    }
+    if (frozen && other.frozen && hashCode() != other.hashCode()) {
+      return false;
+    }
+    byte[] raw = this.raw;
+    byte[] otherRaw = other.raw;
+    if (raw != null && otherRaw != null) {
+      return rawLen == other.rawLen &&
+          Codec.equalBytes(raw, null, rawOfs, otherRaw, null, other.rawOfs, rawLen);
+    }
+    decode();
+    other.decode();
+    if (type.isFixedWidth()) {
+      return Codec.equalBytes(data, direct, ofs, other.data, other.direct, other.ofs,
+          type.dataWidth());
+    }
+    return Codec.forType(type).equal(data, ofs, heap, other.data, other.ofs, other.heap);
+  }
+
+  /**
+   * Get a hash of the type and contents of this data, which is the same as
+   * 31 * getTag().hashCode() + Arrays.hashCode(toBytes()), but computed
+   * without flattening.  For frozen data this is computed only once.
+   */
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      Hasher hasher = new Hasher();
+      scan(hasher);
+      h = 31 * getTag().hashCode() + hasher.hash;
+      if (frozen) {
+        hash = h;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Get a SHA-256 digest of the type and contents of this data, suitable for
+   * identifying data by content across processes.  For frozen data this is
+   * computed only once.
+   * @return
+   */
+  public byte[] digest() {
+    byte[] digest = frozenDigest;
+    if (digest == null) {
+      digest = digest("SHA-256");
+      if (frozen) {
+        frozenDigest = digest;
       }
     }
+    return digest.clone();
+  }
+
+  /**
+   * Get a digest of the type and contents of this data using the given
+   * algorithm, for example "SHA-1" or "SHA-256".  The digest covers the
+   * length of the type tag, the tag itself, and the flattened bytes.
+   * @param algorithm
+   * @return
+   */
+  public byte[] digest(String algorithm) {
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("Unsupported digest algorithm: " + algorithm + ".");
+    }
+    Codec.Sink sink = new Codec.Sink() {
+      public void update(byte[] buf, int ofs, int len) {
+        md.update(buf, ofs, len);
+      }
+
+      public void update(ByteBuffer buf) {
+        md.update(buf);
+      }
+
+      public void updateInt(int value) {
+        md.update(new byte[] {(byte) (value >> 24), (byte) (value >> 16),
+            (byte) (value >> 8), (byte) value});
+      }
+    };
+    String tag = getTag();
+    sink.updateInt(tag.length());
+    for (int i = 0; i < tag.length(); i++) {
+      md.update((byte) tag.charAt(i));
+    }
+    scan(sink);
+    return md.digest();
+  }
+
+  /**
+   * Pass the flattened bytes of this data to a sink, without building them.
+   */
+  private void scan(Codec.Sink sink) {
+    byte[] raw = this.raw;
+    if (raw != null) {
+      sink.update(raw, rawOfs, rawLen);
+      return;
+    }
+    if (frozenBytes != null) {
+      sink.update(frozenBytes, 0, frozenBytes.length);
+      return;
+    }
+    decode();
+    if (type.isFixedWidth()) {
+      if (direct != null) {
+        sink.update(slice(direct, ofs, type.dataWidth()));
+      } else {
+        sink.update(data, ofs, type.dataWidth());
+      }
+      return;
+    }
+    Codec.forType(type).scan(data, ofs, heap, sink);
+  }
+
+  /** Computes the same hash as Arrays.hashCode over the bytes it is given. */
+  private static final class Hasher implements Codec.Sink {
+    int hash = 1;
+
+    public void update(byte[] buf, int ofs, int len) {
+      int h = hash;
+      for (int i = ofs; i < ofs + len; i++) {
+        h = 31 * h + buf[i];
+      }
+      hash = h;
+    }
+
+    public void update(ByteBuffer buf) {
+      int h = hash;
+      for (int i = buf.position(); i < buf.limit(); i++) {
+        h = 31 * h + buf.get(i);
+      }
+      hash = h;
+    }
+
+    public void updateInt(int value) {
+      hash = 31 * (31 * (31 * (31 * hash + (byte) (value >> 24)) + (byte) (value >> 16)) +
+          (byte) (value >> 8)) + (byte) value;
+    }
+  }
+
+  public boolean matchesType(String tag) {
+    return getType().matches(tag);
+  }
+
+  /**
+   * Get the LabRAD type tag string of this data object.
+   * 
+   * @return
+   */
+  public String getTag() {
+    return type.toString();
+  }
+
+  /**
+   * Flatten LabRAD data into an array of bytes, suitable for sending over the wire.
+   * The byte array is allocated once at its exact final size.
+   */
+  public byte[] toBytes() throws IOException {
+    byte[] bytes = new byte[flattenedSize()];
+    writeTo(ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  /**
+   * Get the number of bytes this data will occupy when flattened.
+   * This walks the structure of the data without copying anything;
+   * for lists of fixed-width elements the size is computed directly
+   * from the list shape.
+   * @return
+   */
+  public int flattenedSize() {
+    checkLive();
+    if (frozen) {
+      return getFrozenBytes().length;
+    }
+    if (source != null) {
+      return ListWriter.flattenedSize(type, sourceShape);
+    }
+    if (raw != null) {
+      return rawLen;
+    }
+    return Codec.forType(type).size(data, ofs, heap, false);
   }
 
   /**
@@ -649,7 +1303,7 @@ public class Data implements Serializable, Cloneable {
    * @throws IOException
    */
   public static Data fromBytes(byte[] buf, Type type) throws IOException {
-    return fromBytes(new ByteArrayInputStream(buf), type);
+    return readFrom(ByteBuffer.wrap(buf), type);
   }
 
   /**
@@ -661,155 +1315,784 @@ public class Data implements Serializable, Cloneable {
    * @throws IOException
    */
   public static Data fromBytes(ByteArrayInputStream is, Type type) throws IOException {
+    // decode from a copy of the rest of the stream, then skip what was used
+    byte[] buf = new byte[is.available()];
+    is.mark(buf.length);
+    is.read(buf, 0, buf.length);
+    is.reset();
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    Data data;
+    try {
+      data = readFrom(bb, type);
+    } catch (BufferUnderflowException e) {
+      throw new EOFException("Not enough bytes for data of type '" + type + "'.");
+    }
+    is.skip(bb.position());
+    return data;
+  }
+
+  /**
+   * Flatten LabRAD data into the given ByteBuffer, starting at its current
+   * position.  The buffer may be a heap or direct buffer; data is always
+   * written in big-endian order regardless of the buffer's byte order.
+   * On return, the buffer's position is advanced past the flattened data.
+   * 
+   * @param buf
+   * @throws java.nio.BufferOverflowException if the buffer is too small
+   */
+  public void writeTo(ByteBuffer buf) {
+    checkLive();
+    if (frozen) {
+      buf.put(getFrozenBytes());
+      return;
+    }
+    if (source != null) {
+      final ByteBuffer dest = buf;
+      try {
+        writeTo(new OutputStream() {
+          @Override
+          public void write(int b) {
+            dest.put((byte) b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            dest.put(b, off, len);
+          }
+        });
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to write streamed list.", e);
+      }
+      return;
+    }
+    byte[] raw = this.raw;
+    if (raw != null) {
+      // not yet decoded, so just copy the original bytes
+      buf.put(raw, rawOfs, rawLen);
+      return;
+    }
+    if (direct != null) {
+      // a view into an off-heap list body, which holds only fixed-width data
+      buf.put(slice(direct, ofs, type.dataWidth()));
+      return;
+    }
+    ByteBuffer bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+    int end = Codec.forType(type).write(bb, buf.position(), data, ofs, heap, null);
+    buf.position(end);
+  }
+
+  /**
+   * Flatten this data into a sequence of buffers that together hold the
+   * same bytes as toBytes.  List bodies stored off the Java heap are
+   * included as read-only views of their direct buffers rather than being
+   * copied, so that large arrays can be sent without bringing them back
+   * onto the heap.  The returned buffers share storage with this object,
+   * so they should be used before the data is next modified.
+   * 
+   * @return
+   */
+  public ByteBuffer[] toByteBuffers() {
+    checkLive();
+    if (frozen) {
+      return new ByteBuffer[] {ByteBuffer.wrap(getFrozenBytes()).asReadOnlyBuffer()};
+    }
+    if (source != null) {
+      ByteBuffer bb = ByteBuffer.allocate(flattenedSize());
+      writeTo(bb);
+      bb.flip();
+      return new ByteBuffer[] {bb};
+    }
+    Splices splices = new Splices();
+    ByteBuffer bb = ByteBuffer.allocate(flattenedSizeOnHeap());
+    writeTo(bb, splices);
+    return splices.split(bb.array(), 0, bb.position());
+  }
+
+  /**
+   * Get the number of bytes this data will occupy when flattened, leaving
+   * out list bodies stored off the Java heap.  This is how much space
+   * writeTo(ByteBuffer, Splices) needs.
+   * @return
+   */
+  int flattenedSizeOnHeap() {
+    if (frozen) {
+      return flattenedSize();
+    }
+    if (source != null) {
+      return 0;
+    }
+    if (raw != null || direct != null) {
+      return flattenedSize();
+    }
+    return Codec.forType(type).size(data, ofs, heap, true);
+  }
+
+  /**
+   * Flatten this data into the given ByteBuffer, like writeTo(ByteBuffer),
+   * except that list bodies stored off the Java heap are not copied but are
+   * instead added to the given splices, to be inserted at the position where
+   * they belong.  A streamed list is added to the splices as a whole.
+   * @param buf
+   * @param splices
+   */
+  void writeTo(ByteBuffer buf, Splices splices) {
+    checkLive();
+    if (frozen) {
+      writeTo(buf);
+      return;
+    }
+    if (source != null) {
+      splices.add(buf.position(), this);
+      return;
+    }
+    if (raw != null || direct != null) {
+      writeTo(buf);
+      return;
+    }
+    ByteBuffer bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+    int end = Codec.forType(type).write(bb, buf.position(), data, ofs, heap, splices);
+    buf.position(end);
+  }
+
+  /**
+   * Flatten this data to an output stream.  For a streamed list, the
+   * elements are written to the stream as the source produces them.
+   * @param out
+   * @throws IOException
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    ListWriter.Source source = this.source;
+    if (source == null) {
+      out.write(toBytes());
+      return;
+    }
+    ListWriter writer = new ListWriter(out, type, sourceShape);
+    source.writeElements(writer);
+    writer.finish();
+  }
+
+  /**
+   * Off-heap list bodies and streamed lists to be inserted into flattened
+   * data at specified positions, in increasing order of position.
+   */
+  static final class Splices {
+    private final List<Integer> positions = new ArrayList<Integer>();
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private final List<Data> streams = new ArrayList<Data>();
+
+    void add(int position, ByteBuffer buf) {
+      positions.add(position);
+      buffers.add(buf);
+      streams.add(null);
+    }
+
+    void add(int position, Data stream) {
+      positions.add(position);
+      buffers.add(null);
+      streams.add(stream);
+    }
+
+    int size() {
+      return positions.size();
+    }
+
+    int getPosition(int i) {
+      return positions.get(i);
+    }
+
+    /** Get an off-heap list body, or null if this splice is a streamed list. */
+    ByteBuffer getBuffer(int i) {
+      return buffers.get(i);
+    }
+
+    /** Get a streamed list, or null if this splice is an off-heap list body. */
+    Data getStream(int i) {
+      return streams.get(i);
+    }
+
+    /**
+     * Interleave the given flattened bytes with these splices.
+     * @param bytes
+     * @param start position in the array where the flattened bytes begin
+     * @param end position in the array where the flattened bytes end
+     * @return
+     */
+    ByteBuffer[] split(byte[] bytes, int start, int end) {
+      ByteBuffer[] result = new ByteBuffer[2 * size() + 1];
+      int pos = start;
+      for (int i = 0; i < size(); i++) {
+        result[2 * i] = ByteBuffer.wrap(bytes, pos, positions.get(i) - pos).slice();
+        result[2 * i + 1] = buffers.get(i);
+        pos = positions.get(i);
+      }
+      result[2 * size()] = ByteBuffer.wrap(bytes, pos, end - pos).slice();
+      return result;
+    }
+  }
+
+  /**
+   * Get a buffer covering len bytes of a direct buffer, starting at ofs.
+   */
+  static ByteBuffer slice(ByteBuffer buf, int ofs, int len) {
+    ByteBuffer dup = buf.duplicate();
+    dup.limit(ofs + len).position(ofs);
+    return dup.slice();
+  }
+
+  /**
+   * Unflatten a Data object of the given type from a ByteBuffer, starting at
+   * its current position.  The buffer may be a heap or direct buffer; data is
+   * always read in big-endian order regardless of the buffer's byte order.
+   * On return, the buffer's position is advanced past the unflattened data.
+   * 
+   * @param buf
+   * @param type
+   * @return
+   * @throws java.nio.BufferUnderflowException if the buffer does not contain enough data
+   */
+  public static Data readFrom(ByteBuffer buf, Type type) {
+    ByteBuffer bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
     byte[] data = new byte[type.dataWidth()];
-    List<byte[]> heap = createHeap(type);
-    fromBytes(is, type, data, 0, heap);
+    Heap heap = createHeap(type, data);
+    int end = Codec.forType(type).read(bb, buf.position(), data, 0, heap, false);
+    buf.position(end);
     return new Data(type, data, 0, heap);
   }
 
+  /** Marks the start of a file written by save. */
+  private static final byte[] FILE_MAGIC = {'L', 'R', 'D', 'A', 'T', 'A', '\r', '\n'};
+  private static final int FILE_VERSION = 1;
+
   /**
-   * Unflatten from a stream of bytes according to type, into the middle
-   * of a Data object, as specified by the byte buffer, offset, and heap.
+   * Save this data to a file that can be opened again with map.  The file
+   * holds a short header, followed by the type tag and the flattened data,
+   * each written as a LabRAD string, exactly as they appear in the records
+   * of a packet.  This means that the data part of the file can be sent
+   * over the wire byte for byte.
    * 
-   * @param is
-   * @param type
-   * @param buf
-   * @param ofs
-   * @param heap
+   * Like a LabRAD record, and like the buffer that map reads it from, the
+   * whole file is limited to 2 GB (Integer.MAX_VALUE bytes).  Larger data
+   * must be split across several files.
+   * 
+   * @param file
+   * @throws IOException if writing fails, or if the file would be larger than 2 GB
+   */
+  public void save(File file) throws IOException {
+    byte[] tag = getTag().getBytes(STRING_ENCODING);
+    ByteBuffer[] body = toByteBuffers();
+    ByteBuffer header = ByteBuffer.allocate(FILE_MAGIC.length + 4 + 4 + tag.length + 4);
+    long len = 0;
+    for (ByteBuffer buf : body) {
+      len += buf.remaining();
+    }
+    if (header.capacity() + len > Integer.MAX_VALUE) {
+      throw new IOException("Data of type '" + type + "' is too large to save; " +
+          "files are limited to " + Integer.MAX_VALUE + " bytes.");
+    }
+    header.put(FILE_MAGIC).putInt(FILE_VERSION);
+    header.putInt(tag.length).put(tag);
+    header.putInt((int) len);
+    header.flip();
+    FileOutputStream os = new FileOutputStream(file);
+    try {
+      FileChannel channel = os.getChannel();
+      channel.write(header);
+      for (ByteBuffer buf : body) {
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Open data that was saved to a file with save, by mapping the file into
+   * memory.  The bodies of lists with fixed-width elements are not read in,
+   * but are left in the mapped file to be paged in as they are accessed, so
+   * even very large arrays open immediately.  The data is read-only.
+   * The file is mapped as a single buffer, so it may be at most 2 GB
+   * (Integer.MAX_VALUE bytes), as written by save.
+   * 
+   * @param file
+   * @return
+   * @throws IOException if the file can't be read, is not a valid data file,
+   *         or is larger than 2 GB
+   */
+  public static Data map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    MappedByteBuffer mapped;
+    try {
+      if (raf.length() > Integer.MAX_VALUE) {
+        throw new IOException("LabRAD data file is larger than " +
+            Integer.MAX_VALUE + " bytes: " + file);
+      }
+      mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close(); // the mapping remains valid
+    }
+    try {
+      byte[] magic = new byte[FILE_MAGIC.length];
+      mapped.get(magic);
+      if (!Arrays.equals(magic, FILE_MAGIC)) {
+        throw new IOException("Not a LabRAD data file: " + file);
+      }
+      int version = mapped.getInt();
+      if (version != FILE_VERSION) {
+        throw new IOException("Unsupported LabRAD data file version " + version + ": " + file);
+      }
+      byte[] tag = new byte[mapped.getInt()];
+      mapped.get(tag);
+      Type type = Type.fromTag(new String(tag, STRING_ENCODING));
+      int len = mapped.getInt();
+
+      byte[] data = new byte[type.dataWidth()];
+      Heap heap = new Heap(type, data);
+      int start = mapped.position();
+      int end = Codec.forType(type).read(mapped, start, data, 0, heap, true);
+      if (end != start + len) {
+        throw new IOException("Data in file has wrong length for type '" + type + "': " + file);
+      }
+      heap.setReadOnly();
+      return new Data(type, data, 0, heap);
+    } catch (java.nio.BufferUnderflowException e) {
+      throw new IOException("LabRAD data file is truncated: " + file);
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("LabRAD data file is truncated: " + file);
+    }
+  }
+
+  /**
+   * Get an immutable snapshot of this data, which can be shared between
+   * threads, cached, and sent any number of times without being copied.
+   * Setters on the snapshot and on all views into it throw
+   * UnsupportedOperationException.  Its flattened bytes are computed once,
+   * the first time they are needed, and reused after that.  Freezing data
+   * that is already read-only returns the same object.
+   * 
+   * @return
+   */
+  public Data freeze() {
+    decode();
+    if (heap.isReadOnly()) {
+      return this;
+    }
+    byte[] buf = new byte[type.dataWidth()];
+    Heap heap = new Heap(type, buf); // never shared, even for fixed-width types
+    copyRaw(type, data, direct, ofs, this.heap, buf, null, 0, heap);
+    heap.setReadOnly();
+    Data frozen = new Data(type, buf, 0, heap);
+    frozen.frozen = true;
+    return frozen;
+  }
+
+  /**
+   * Get the flattened bytes of frozen data, flattening it the first time.
+   * The returned array must not be modified.  Since frozen data never
+   * changes, concurrent callers at worst flatten it more than once.
+   */
+  private byte[] getFrozenBytes() {
+    byte[] bytes = frozenBytes;
+    if (bytes == null) {
+      Codec codec = Codec.forType(type);
+      bytes = new byte[codec.size(data, ofs, heap, false)];
+      codec.write(ByteBuffer.wrap(bytes), 0, data, ofs, heap, null);
+      frozenBytes = bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Indicates whether this data is read-only, as for data opened with map
+   * or returned by freeze.
+   * @return
+   */
+  public boolean isReadOnly() {
+    decode();
+    return heap.isReadOnly();
+  }
+
+  /**
+   * Checks that this data can be modified.
+   */
+  private void checkWritable() {
+    if (heap.isReadOnly()) {
+      throw new UnsupportedOperationException("Data is read-only.");
+    }
+  }
+
+  public String toString() {
+    return "Data(\"" + type.toString() + "\")";
+  }
+
+  /**
+   * Returns a pretty-printed version of this LabRAD data.
+   * 
+   * @return
+   */
+  public String pretty() {
+    return pretty(PrettyLimits.NONE);
+  }
+
+  /**
+   * Returns a pretty-printed version of this LabRAD data, abbreviated
+   * to fit within the given limits.
+   * @param limits
+   * @return
+   */
+  public String pretty(PrettyLimits limits) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      prettyTo(sb, limits);
+    } catch (IOException e) {
+      throw new RuntimeException(e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Write a pretty-printed version of this LabRAD data to the given output,
+   * abbreviated to fit within the given limits.  Output is written as the
+   * data is walked, and only the parts that are shown are visited, so
+   * printing a small part of a huge value is cheap.  Data that has not been
+   * decoded is printed straight from its flattened bytes, and a streamed
+   * list is printed from the first part of its stream, so in both cases the
+   * data is left as it was.
+   * @param out
+   * @param limits
    * @throws IOException
    */
-  private static void fromBytes(ByteArrayInputStream is,
-      Type type, byte[] buf, int ofs, List<byte[]> heap) throws IOException {
-    if (type.isFixedWidth()) {
-      is.read(buf, ofs, type.dataWidth());
-    } else {
+  public void prettyTo(Appendable out, PrettyLimits limits) throws IOException {
+    Printer printer = new Printer(out, limits);
+    try {
+      ListWriter.Source source = this.source;
+      byte[] raw = this.raw;
+      if (source != null) {
+        DataParser p = new DataParser(headOfStream(limits), type);
+        p.next();
+        printer.print(p, 0);
+      } else if (raw != null) {
+        DataParser p = new DataParser(ByteBuffer.wrap(raw, rawOfs, rawLen), type);
+        p.next();
+        printer.print(p, 0);
+      } else {
+        printer.print(this, 0);
+      }
+    } catch (Truncated e) {
+      // the character budget ran out, and the output ends with "..."
+    }
+  }
+
+  /**
+   * Get the first part of the flattened bytes of a streamed list, enough to
+   * hold the elements that are shown when printing within the given limits.
+   * The source is stopped once that much has been written.  The elements
+   * after those are left out; since they are fixed-width, the parser skips
+   * over them without reading them.
+   */
+  private byte[] headOfStream(PrettyLimits limits) throws IOException {
+    int width = type.getSubtype(0).dataWidth();
+    long end = 4 * sourceShape.length;
+    if (limits.getMaxDepth() > 0) {
+      long last = 0, stride = 1;
+      for (int dim = sourceShape.length - 1; dim >= 0; dim--) {
+        int shown = Math.min(sourceShape[dim], limits.getMaxElements());
+        if (shown == 0) {
+          last = -1;
+          break;
+        }
+        last += (shown - 1) * stride;
+        stride *= sourceShape[dim];
+      }
+      end += (last + 1) * width;
+    }
+    final int len = (int) Math.min(end, flattenedSize());
+    final byte[] head = new byte[len];
+    OutputStream out = new OutputStream() {
+      int pos = 0;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int n) throws IOException {
+        int count = Math.min(n, len - pos);
+        System.arraycopy(b, off, head, pos, count);
+        pos += count;
+        if (pos >= len) {
+          throw new StreamCut();
+        }
+      }
+    };
+    try {
+      if (len > 0) {
+        writeTo(out);
+      }
+    } catch (StreamCut e) {
+      // we have all we need
+    }
+    return head;
+  }
+
+  /** Thrown to stop a streamed list's source once enough has been written. */
+  private static final class StreamCut extends IOException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /** Thrown to stop printing when the character budget runs out. */
+  private static final class Truncated extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  /** Writes pretty-printed data to an Appendable, within limits. */
+  private static final class Printer {
+    private final Appendable out;
+    private final PrettyLimits limits;
+    private long remaining; // characters left in the budget
+
+    Printer(Appendable out, PrettyLimits limits) {
+      this.out = out;
+      this.limits = limits;
+      this.remaining = limits.getMaxChars();
+    }
+
+    void print(Data d, int depth) throws IOException {
+      String u;
+      Type type = d.type;
       switch (type.getCode()) {
+        case EMPTY: break;
+        case BOOL: append(Boolean.toString(d.getBool())); break;
+        case INT: append(Integer.toString(d.getInt())); break;
+        case WORD: append(Long.toString(d.getWord())); break;
+
+        case VALUE:
+          u = type.getUnits();
+          append(Double.toString(d.getValue()));
+          if (u != null) append(" [" + u + "]");
+          break;
+
+        case COMPLEX:
+          Complex c = d.getComplex();
+          u = type.getUnits();
+          append(Double.toString(c.getReal()));
+          append((c.getImag() >= 0 ? "+" : "") + Double.toString(c.getImag()) + "i");
+          if (u != null) append(" [" + u + "]");
+          break;
+
+        case TIME: append(d.getTime().toString()); break;
+
         case STR:
-          int len = Bytes.readInt(is);
-          byte[] sbuf = new byte[len];
-          Bytes.setInt(buf, ofs, heap.size());
-          heap.add(sbuf);
-          is.read(sbuf, 0, len);
+          int h = Bytes.getInt(d.getOffset()); // decodes d if necessary
+          append("\"");
+          appendString(d.heap, h);
+          append("\"");
           break;
 
         case LIST:
-          int depth = type.getDepth();
-          Type elementType = type.getSubtype(0);
-          int elementWidth = elementType.dataWidth();
-          is.read(buf, ofs, 4 * depth);
-          int size = 1;
-          for (int i = 0; i < depth; i++) {
-            size *= Bytes.getInt(buf, ofs + 4 * i);
-          }
-          byte[] lbuf = new byte[elementWidth * size];
-          Bytes.setInt(buf, ofs + 4 * depth, heap.size());
-          heap.add(lbuf);
-          if (elementType.isFixedWidth()) {
-            is.read(lbuf, 0, elementWidth * size);
-          } else {
-            for (int i = 0; i < size; i++) {
-              fromBytes(is, type.getSubtype(0), lbuf, elementWidth * i,
-                  heap);
-            }
+          if (depth >= limits.getMaxDepth()) {
+            append("...");
+            break;
           }
+          printList(d, d.getArrayShape(), new int[type.getDepth()], 0, depth);
           break;
 
         case CLUSTER:
-          for (int i = 0; i < type.size(); i++) {
-            fromBytes(is, type.getSubtype(i), buf,
-                ofs + type.getOffset(i), heap);
+          if (depth >= limits.getMaxDepth()) {
+            append("...");
+            break;
+          }
+          append("(");
+          for (int i = 0; i < d.getClusterSize(); i++) {
+            if (i > 0) append(", ");
+            print(d.get(i), depth + 1);
           }
+          append(")");
           break;
 
         case ERROR:
-          String tag = "is" + type.getSubtype(0).toString();
-          fromBytes(is, Type.fromTag(tag), buf, ofs, heap);
+          ByteArrayView pos = d.getOffset();
+          append("Error(" + Integer.toString(d.getErrorCode()) + ", ");
+          appendString(d.heap, Bytes.getInt(pos.getBytes(), pos.getOffset() + 4));
+          append(")");
           break;
 
         default:
-          throw new RuntimeException("Unknown type.");
+          throw new RuntimeException("Unknown type: " + type.pretty() + ".");
       }
     }
-  }
 
-  public String toString() {
-    return "Data(\"" + type.toString() + "\")";
-  }
+    /**
+     * Print flattened data, starting at the event the parser has just
+     * returned.  When this returns, the parser is at the last event of the
+     * printed data, so a list, cluster or error is left at its end event.
+     */
+    void print(DataParser p, int depth) throws IOException {
+      String u;
+      Type type = p.getType();
+      switch (p.getEvent()) {
+        case EMPTY: break;
+        case BOOL: append(Boolean.toString(p.getBool())); break;
+        case INT: append(Integer.toString(p.getInt())); break;
+        case WORD: append(Long.toString(p.getWord())); break;
+
+        case VALUE:
+          u = type.getUnits();
+          append(Double.toString(p.getValue()));
+          if (u != null) append(" [" + u + "]");
+          break;
 
-  /**
-   * Returns a pretty-printed version of this LabRAD data.
-   * 
-   * @return
-   */
-  public String pretty() {
-    String s = "", u;
-    switch (type.getCode()) {
-      case EMPTY: return "";
-      case BOOL: return Boolean.toString(getBool());
-      case INT: return Integer.toString(getInt());
-      case WORD: return Long.toString(getWord());
+        case COMPLEX:
+          u = type.getUnits();
+          append(Double.toString(p.getReal()));
+          append((p.getImag() >= 0 ? "+" : "") + Double.toString(p.getImag()) + "i");
+          if (u != null) append(" [" + u + "]");
+          break;
 
-      case VALUE:
-        u = type.getUnits();
-        return Double.toString(getValue()) + (u != null ? " [" + u + "]" : "");
+        case TIME: append(p.getTime().toString()); break;
 
-      case COMPLEX:
-        Complex c = getComplex();
-        u = type.getUnits();
-        return Double.toString(c.getReal()) + (c.getImag() >= 0 ? "+" : "") + 
-        Double.toString(c.getImag()) + "i" + (u != null ? " [" + u + "]" : "");
+        case STRING:
+          append("\"");
+          appendString(p.getStringBuffer());
+          append("\"");
+          break;
 
-      case TIME: return getTime().toString();
-      case STR: return '"' + getString() + '"';
+        case START_LIST:
+          if (depth >= limits.getMaxDepth()) {
+            append("...");
+            p.skip();
+          } else {
+            printList(p, p.getShape(), 0, depth);
+          }
+          p.next();
+          break;
 
-      case LIST:
-        int[] shape = getArrayShape();
-        int[] indices = new int[type.getDepth()];
-        return prettyList(shape, indices, 0);
+        case START_CLUSTER:
+          if (depth >= limits.getMaxDepth()) {
+            append("...");
+            p.skip();
+            p.next();
+            break;
+          }
+          append("(");
+          for (int i = 0; p.next() != DataParser.Event.END_CLUSTER; i++) {
+            if (i > 0) append(", ");
+            print(p, depth + 1);
+          }
+          append(")");
+          break;
 
-      case CLUSTER:
-        StringBuffer buf = new StringBuffer(s);
-        for (int i = 0; i < getClusterSize(); i++) {
-          buf.append(", ");
-          buf.append(get(i).pretty());
-        }
-        return "(" + buf.toString().substring(2) + ")";
+        case START_ERROR:
+          p.next();
+          append("Error(" + Integer.toString(p.getInt()) + ", ");
+          p.next();
+          appendString(p.getStringBuffer());
+          append(")");
+          p.skip();
+          p.next();
+          break;
 
-      case ERROR:
-        return "Error(" + Integer.toString(getErrorCode()) + ", "
-        + getErrorMessage() + ")";
+        default:
+          throw new RuntimeException("Unknown type: " + type.pretty() + ".");
+      }
+    }
 
-      default:
-        throw new RuntimeException("Unknown type: " + type.pretty() + ".");
+    /**
+     * Print one dimension of a flattened list, showing at most maxElements
+     * entries and skipping over the rest.
+     */
+    private void printList(DataParser p, int[] shape, int level, int depth)
+        throws IOException {
+      int inner = 1;
+      for (int dim = level + 1; dim < shape.length; dim++) {
+        inner *= shape[dim];
+      }
+      int count = Math.min(shape[level], limits.getMaxElements());
+      append("[");
+      for (int i = 0; i < count; i++) {
+        if (i > 0) append(", ");
+        if (level == shape.length - 1) {
+          p.next();
+          print(p, depth + 1);
+        } else {
+          printList(p, shape, level + 1, depth);
+        }
+      }
+      if (count < shape[level]) {
+        append(count > 0 ? ", ..." : "...");
+        p.skip((shape[level] - count) * inner);
+      }
+      append("]");
     }
-  }
 
-  /**
-   * Returns a pretty-printed version of a list object.
-   * @param shape
-   * @param indices
-   * @param level
-   * @return
-   */
-  private String prettyList(int[] shape, int[] indices, int level) {
-    String s = "";
-    if (shape[level] > 0) {
-      StringBuilder sb = new StringBuilder();
-      for (int i = 0; i < shape[level]; i++) {
+    /**
+     * Print one dimension of a list, showing at most maxElements entries.
+     */
+    private void printList(Data d, int[] shape, int[] indices, int level, int depth)
+        throws IOException {
+      int count = Math.min(shape[level], limits.getMaxElements());
+      append("[");
+      for (int i = 0; i < count; i++) {
         indices[level] = i;
+        if (i > 0) append(", ");
         if (level == shape.length - 1) {
-          if (i > 0) sb.append(", ");
-          sb.append(get(indices).pretty());
-          //s += ", " + get(indices).pretty();
+          print(d.get(indices), depth + 1);
         } else {
-          if (i > 0) sb.append(", ");
-          sb.append(prettyList(shape, indices, level + 1));
-          //s += ", " + prettyList(shape, indices, level + 1);
+          printList(d, shape, indices, level + 1, depth);
         }
       }
-      s = sb.toString();
+      if (count < shape[level]) {
+        append(count > 0 ? ", ..." : "...");
+      }
+      append("]");
+    }
+
+    /**
+     * Print a string from the heap, decoding only as much as fits in the budget.
+     */
+    private void appendString(Heap heap, int h) throws IOException {
+      int len = heap.length(h);
+      int n = (int) Math.min(len, remaining);
+      append(new String(heap.buf(h), heap.offset(h), n, STRING_ENCODING));
+      if (n < len) {
+        truncate();
+      }
+    }
+
+    /**
+     * Print a string from a flattened buffer, copying only as much as fits in the budget.
+     */
+    private void appendString(ByteBuffer buf) throws IOException {
+      int len = buf.remaining();
+      byte[] bytes = new byte[(int) Math.min(len, remaining)];
+      buf.get(bytes);
+      append(new String(bytes, STRING_ENCODING));
+      if (bytes.length < len) {
+        truncate();
+      }
+    }
+
+    private void append(String s) throws IOException {
+      if (s.length() > remaining) {
+        out.append(s, 0, (int) remaining);
+        truncate();
+      }
+      out.append(s);
+      remaining -= s.length();
+    }
+
+    private void truncate() throws IOException {
+      out.append("...");
+      remaining = 0;
+      throw new Truncated();
     }
-    return "[" + s + "]";
   }
 
   /**
@@ -817,6 +2100,7 @@ public class Data implements Serializable, Cloneable {
    * @param code
    */
   private void getSubtype(Type.Code code) {
+    decode();
     if (type.getCode() != code) {
       throw new RuntimeException(
           "Type mismatch: expecting " + code +
@@ -883,11 +2167,13 @@ public class Data implements Serializable, Cloneable {
    * @return
    */
   private ByteArrayView getOffset(int...indices) {
+    decode();
     Type type = this.type;
     byte[] data = this.data;
+    ByteBuffer direct = this.direct;
     int depth = 0, dimsLeft = 0;
     int[] shape = {}, listIndices = {};
-    int ofs = this.ofs;
+    int ofs = this.ofs, listOfs = 0;
     for (int i : indices) {
       switch (type.getCode()) {
         case LIST:
@@ -900,7 +2186,10 @@ public class Data implements Serializable, Cloneable {
               shape[j] = Bytes.getInt(data, ofs + 4 * j);
             }
             dimsLeft = depth;
-            data = heap.get(Bytes.getInt(data, ofs + 4 * depth));
+            int h = Bytes.getInt(data, ofs + 4 * depth);
+            data = heap.buf(h);
+            direct = heap.direct(h);
+            listOfs = heap.offset(h);
           }
           // read one listIndex
           listIndices[depth - dimsLeft] = i;
@@ -908,7 +2197,7 @@ public class Data implements Serializable, Cloneable {
           if (dimsLeft == 0) {
             // set type to be element type of array
             type = type.getSubtype(0);
-            ofs = 0;
+            ofs = listOfs;
             // calculate offset into array
             int product = 1;
             for (int dim = depth - 1; dim >= 0; dim--) {
@@ -923,52 +2212,382 @@ public class Data implements Serializable, Cloneable {
           type = type.getSubtype(i);
           break;
 
-        default:
-          throw new NonIndexableTypeException(type);
+        default:
+          throw new NonIndexableTypeException(type);
+      }
+    }
+    if (dimsLeft != 0) {
+      throw new RuntimeException("Not enough indices for array.");
+    }
+    return new ByteArrayView(data, direct, ofs);
+  }
+
+  /**
+   * Checks that this data object is a list of the specified depth whose
+   * elements have the specified type, and returns a view of the heap buffer
+   * holding the list elements.  This lets array getters and setters typecheck
+   * once and then work directly on the element bytes.
+   * @param code
+   * @param depth
+   * @return
+   */
+  private ByteArrayView getListBytes(Type.Code code, int depth) {
+    getSubtype(Type.Code.LIST);
+    if (type.getDepth() != depth) {
+      throw new RuntimeException(
+          "Array depth mismatch: expecting " + depth +
+          " but found " + type.getDepth() + " instead.");
+    }
+    checkListOf(code);
+    return getListBuffer();
+  }
+
+  /**
+   * Checks that this data object is a list of any depth whose elements
+   * have the specified type.
+   * @param code
+   */
+  private void checkListOf(Type.Code code) {
+    getSubtype(Type.Code.LIST);
+    Type elementType = type.getSubtype(0);
+    if (elementType.getCode() != code) {
+      throw new RuntimeException(
+          "Type mismatch: expecting list of " + code +
+          " but found list of " + elementType.getCode() + " instead.");
+    }
+  }
+
+  /**
+   * Row-major indexing information for a list, computed from its shape.
+   * Since setArrayShape always allocates a new list buffer, this stays valid
+   * for as long as the list buffer it was computed for remains in place.
+   */
+  private static final class Strides {
+    final byte[] lbuf;
+    final ByteBuffer direct;
+    final int base;
+    final int[] shape;
+    final int[] strides; // in bytes
+    final int width;
+    final long size;
+
+    Strides(byte[] lbuf, ByteBuffer direct, int base, int[] shape, int width) {
+      this.lbuf = lbuf;
+      this.direct = direct;
+      this.base = base;
+      this.shape = shape;
+      this.width = width;
+      strides = new int[shape.length];
+      long count = 1;
+      for (int dim = shape.length - 1; dim >= 0; dim--) {
+        strides[dim] = (int) (width * count);
+        count *= shape[dim];
+      }
+      size = count;
+    }
+
+    int offsetOf(int[] indices) {
+      int pos = base;
+      for (int dim = 0; dim < indices.length; dim++) {
+        int i = indices[dim];
+        if (i < 0 || i >= shape[dim]) {
+          throw new IndexOutOfBoundsException(
+              "Index " + i + " out of bounds for dimension " + dim +
+              " of size " + shape[dim] + ".");
+        }
+        pos += strides[dim] * i;
+      }
+      return pos;
+    }
+
+    int offsetOf(long flatIndex) {
+      if (flatIndex < 0 || flatIndex >= size) {
+        throw new IndexOutOfBoundsException(
+            "Index " + flatIndex + " out of bounds for list of size " + size + ".");
+      }
+      return base + (int) (width * flatIndex);
+    }
+  }
+
+  /**
+   * Get a view of the buffer holding the elements of this list, without typechecking.
+   * @return
+   */
+  private ByteArrayView getListBuffer() {
+    decode();
+    int h = Bytes.getInt(data, ofs + 4 * type.getDepth());
+    return new ByteArrayView(heap.buf(h), heap.direct(h), heap.offset(h));
+  }
+
+  /**
+   * Get indexing information for this list, computing it from the list shape
+   * only if the list buffer has changed since we last looked.
+   * @return
+   */
+  private Strides getStrides() {
+    decode();
+    int h = Bytes.getInt(data, ofs + 4 * type.getDepth());
+    byte[] lbuf = heap.buf(h);
+    ByteBuffer direct = heap.direct(h);
+    int base = heap.offset(h);
+    Strides s = strides;
+    if (s == null || s.lbuf != lbuf || s.direct != direct || s.base != base) {
+      int depth = type.getDepth();
+      int[] shape = new int[depth];
+      for (int dim = 0; dim < depth; dim++) {
+        shape[dim] = Bytes.getInt(data, ofs + 4 * dim);
+      }
+      s = new Strides(lbuf, direct, base, shape, type.getSubtype(0).dataWidth());
+      strides = s;
+    }
+    return s;
+  }
+
+  /**
+   * Get the element of a (possibly multidimensional) list at the
+   * specified flat index, treating the list as a single row-major array.
+   * Like get, this returns a view rather than a copy.
+   * @param flatIndex
+   * @return
+   */
+  public Data getFlat(long flatIndex) {
+    getSubtype(Type.Code.LIST);
+    Strides s = getStrides();
+    return new Data(type.getSubtype(0), s.lbuf, s.direct, s.offsetOf(flatIndex), heap);
+  }
+
+  // flat-indexed getters for (possibly multidimensional) lists
+  public boolean getBoolFlat(long flatIndex) {
+    checkListOf(Type.Code.BOOL);
+    Strides s = getStrides();
+    return Bytes.getBool(s.lbuf, s.direct, s.offsetOf(flatIndex));
+  }
+
+  public int getIntFlat(long flatIndex) {
+    checkListOf(Type.Code.INT);
+    Strides s = getStrides();
+    return Bytes.getInt(s.lbuf, s.direct, s.offsetOf(flatIndex));
+  }
+
+  public long getWordFlat(long flatIndex) {
+    checkListOf(Type.Code.WORD);
+    Strides s = getStrides();
+    return Bytes.getWord(s.lbuf, s.direct, s.offsetOf(flatIndex));
+  }
+
+  public double getValueFlat(long flatIndex) {
+    checkListOf(Type.Code.VALUE);
+    Strides s = getStrides();
+    return Bytes.getDouble(s.lbuf, s.direct, s.offsetOf(flatIndex));
+  }
+
+  /**
+   * Get a Data subobject at the specified list of indices.  Note that
+   * this returns a view rather than a copy, so any modifications to
+   * the subobject will be reflected in the original data.
+   * @param indices
+   * @return
+   */
+  public Data get(List<Integer> indices) {
+    int[] indexArray = new int[indices.size()];
+    int i = 0;
+    for (int e : indices) indexArray[i++] = e;
+    return get(indexArray);
+  }
+
+  /**
+   * Get a Data subobject at the specified array of indices.  Note that
+   * this returns a view rather than a copy, so any modifications to
+   * the subobject will be reflected in the original data.
+   * @param indices
+   * @return
+   */
+  public Data get(int...indices) {
+    decode();
+    if (type.getCode() == Type.Code.LIST && indices.length == type.getDepth()) {
+      // fast path for indexing directly into a list
+      Strides s = getStrides();
+      return new Data(type.getSubtype(0), s.lbuf, s.direct, s.offsetOf(indices), heap);
+    }
+    Type type = getSubtype(indices);
+    ByteArrayView pos = getOffset(indices);
+    return new Data(type, pos.getBytes(), pos.getBuffer(), pos.getOffset(), heap);
+  }
+
+  /**
+   * Get one row of a multidimensional list, that is, the list with one
+   * fewer dimension whose elements all have the given first index.  For
+   * example, row(i) of a *2v with shape [n, m] is a *v of length m.  As
+   * with slice, this is a view when the elements are fixed-width.
+   * @param i
+   * @return
+   */
+  public Data row(int i) {
+    getSubtype(Type.Code.LIST);
+    int[] shape = getArrayShape();
+    if (shape.length < 2) {
+      throw new RuntimeException("Can't get row of one-dimensional array.  Use get.");
+    }
+    if (i < 0 || i >= shape[0]) {
+      throw new IndexOutOfBoundsException(
+          "Index " + i + " out of bounds for dimension 0 of size " + shape[0] + ".");
+    }
+    int[] rowShape = Arrays.copyOfRange(shape, 1, shape.length);
+    return listView(rowShape, i * count(rowShape));
+  }
+
+  /**
+   * Get the part of a list whose index along the given dimension is at
+   * least from and less than to, keeping all indices along the other
+   * dimensions.  If the elements are fixed-width and the selected part is
+   * contiguous, which is always the case when slicing along the first
+   * dimension, the result is a view that shares the elements of this list,
+   * so changes to either are seen in the other and only the selected
+   * elements are flattened when the view is sent.  Otherwise, the selected
+   * elements are copied.
+   * @param dim
+   * @param from
+   * @param to
+   * @return
+   */
+  public Data slice(int dim, int from, int to) {
+    getSubtype(Type.Code.LIST);
+    int[] shape = getArrayShape();
+    if (dim < 0 || dim >= shape.length) {
+      throw new IndexOutOfBoundsException(
+          "Dimension " + dim + " out of bounds for array of depth " + shape.length + ".");
+    }
+    if (from < 0 || to > shape[dim] || from > to) {
+      throw new IndexOutOfBoundsException(
+          "Slice [" + from + ", " + to + ") out of bounds for dimension " + dim +
+          " of size " + shape[dim] + ".");
+    }
+    int[] sliceShape = shape.clone();
+    sliceShape[dim] = to - from;
+    // treat the list as [outer][shape[dim]][inner] and copy one run per outer index
+    long outer = count(Arrays.copyOfRange(shape, 0, dim));
+    long inner = count(Arrays.copyOfRange(shape, dim + 1, shape.length));
+    if (outer == 1 || to == from || inner == 0) {
+      return listView(sliceShape, outer == 1 ? from * inner : 0);
+    }
+    Data result = new Data(type).setArrayShape(sliceShape);
+    long run = (to - from) * inner;
+    Type element = type.getSubtype(0);
+    if (element.isFixedWidth()) {
+      int width = element.dataWidth();
+      Strides src = getStrides();
+      Strides dst = result.getStrides();
+      for (long k = 0; k < outer; k++) {
+        copyBytes(src.lbuf, src.direct, src.offsetOf((k * shape[dim] + from) * inner),
+            dst.lbuf, dst.direct, dst.offsetOf(k * run), (int) (width * run));
+      }
+    } else {
+      for (long k = 0; k < outer; k++) {
+        for (long e = 0; e < run; e++) {
+          result.getFlat(k * run + e).set(getFlat((k * shape[dim] + from) * inner + e));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Get this list with a different shape but the same elements, in the
+   * same row-major order.  The new shape may have a different number of
+   * dimensions, but must have the same number of elements.  As with slice,
+   * this is a view when the elements are fixed-width.
+   * @param shape
+   * @return
+   */
+  public Data reshape(int... shape) {
+    getSubtype(Type.Code.LIST);
+    if (shape.length == 0) {
+      throw new RuntimeException("Array shape must have at least one dimension.");
+    }
+    for (int dim : shape) {
+      if (dim < 0) {
+        throw new RuntimeException("Array shape must not be negative.");
       }
     }
-    if (dimsLeft != 0) {
-      throw new RuntimeException("Not enough indices for array.");
+    long size = count(getArrayShape());
+    if (count(shape) != size) {
+      throw new RuntimeException("Can't reshape array of size " + size +
+          " to shape " + Arrays.toString(shape) + ".");
     }
-    return new ByteArrayView(data, ofs);
+    return listView(shape.clone(), 0);
+  }
+
+  private static long count(int[] shape) {
+    long count = 1;
+    for (int dim : shape) {
+      count *= dim;
+    }
+    return count;
   }
 
   /**
-   * Get a Data subobject at the specified list of indices.  Note that
-   * this returns a view rather than a copy, so any modifications to
-   * the subobject will be reflected in the original data.
-   * @param indices
-   * @return
+   * Make a list of the given shape whose elements are the consecutive
+   * elements of this list that start at the given flat index.  If the
+   * elements are fixed-width, the new list has a heap of its own whose
+   * only piece is the region of this list's body holding those elements.
+   * Otherwise the elements refer to other pieces of this heap, so they
+   * are copied instead.
    */
-  public Data get(List<Integer> indices) {
-    int[] indexArray = new int[indices.size()];
-    int i = 0;
-    for (int e : indices) indexArray[i++] = e;
-    return get(indexArray);
+  private Data listView(int[] shape, long start) {
+    Type listType = org.labrad.types.List.of(type.getSubtype(0), shape.length);
+    long size = count(shape);
+    if (!listType.getSubtype(0).isFixedWidth()) {
+      Data result = new Data(listType).setArrayShape(shape);
+      for (long k = 0; k < size; k++) {
+        result.getFlat(k).set(getFlat(start + k));
+      }
+      return result;
+    }
+    Strides s = getStrides();
+    int width = listType.getSubtype(0).dataWidth();
+    int pos = (size == 0) ? s.base : s.offsetOf(start);
+    byte[] buf = new byte[listType.dataWidth()];
+    Heap heap = new Heap(listType, buf, this.heap);
+    int h = (s.direct != null)
+        ? heap.add(slice(s.direct, pos, (int) (width * size)))
+        : heap.add(s.lbuf, pos, (int) (width * size));
+    for (int dim = 0; dim < shape.length; dim++) {
+      Bytes.setInt(buf, 4 * dim, shape[dim]);
+    }
+    Bytes.setInt(buf, 4 * shape.length, h);
+    return new Data(listType, buf, 0, heap);
   }
 
   /**
-   * Get a Data subobject at the specified array of indices.  Note that
-   * this returns a view rather than a copy, so any modifications to
-   * the subobject will be reflected in the original data.
-   * @param indices
+   * Get a cursor positioned at the root of this data object.  The cursor
+   * can be moved around within the data to read and write values without
+   * allocating a new view object for each access.
    * @return
    */
-  public Data get(int...indices) {
-    Type type = getSubtype(indices);
-    ByteArrayView pos = getOffset(indices);
-    return new Data(type, pos.getBytes(), pos.getOffset(), heap);
+  public DataCursor cursor() {
+    decode();
+    return new DataCursor(type, data, direct, ofs, heap);
   }
 
   /**
    * Set this data object based on the value of the other object.  In this case,
    * to prevent strangeness with shared heaps, the other object is copied into
-   * this data object.
+   * this data object.  When both have the same layout, the bytes are copied
+   * directly, as in clone.
    * @param other
    * @return
    */
   public Data set(Data other) {
-    copy(other, this);
+    decode();
+    other.decode();
+    if (!sameLayout(type, other.type)) {
+      copy(other, this);
+      return this;
+    }
+    checkWritable();
+    copyRaw(type, other.data, other.direct, other.ofs, other.heap, data, direct, ofs, heap);
+    // any strings or lists that were set before are now orphaned
+    heap.maybeCompact();
     return this;
   }
 
@@ -1028,14 +2647,16 @@ public class Data implements Serializable, Cloneable {
 
   public String getString() {
     try {
-      return new String(getBytes(), STRING_ENCODING);
+      return getString(STRING_ENCODING);
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException("Unsupported string encoding.");
     }
   }
 
   public String getString(String encoding) throws UnsupportedEncodingException {
-    return new String(getBytes(), encoding);
+    getSubtype(Type.Code.STR);
+    int h = Bytes.getInt(getOffset());
+    return new String(heap.buf(h), heap.offset(h), heap.length(h), encoding);
   }
 
   public double getValue() {
@@ -1052,11 +2673,51 @@ public class Data implements Serializable, Cloneable {
     return type.getUnits();
   }
 
+  /**
+   * Get the whole seconds of a time, counted from the LabRAD epoch,
+   * Jan 1, 1904 GMT.
+   * @return
+   */
+  public long getTimeSeconds() {
+    getSubtype(Type.Code.TIME);
+    ByteArrayView ofs = getOffset();
+    return Bytes.getLong(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset());
+  }
+
+  /**
+   * Get the fractional part of a time, exactly as it is stored.  The
+   * fraction is a count of 1/Long.MAX_VALUE seconds, as in getTime.
+   * @return
+   */
+  public long getTimeFraction() {
+    getSubtype(Type.Code.TIME);
+    ByteArrayView ofs = getOffset();
+    return Bytes.getLong(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset() + 8);
+  }
+
+  /**
+   * Get a time as nanoseconds since the Java epoch, Jan 1, 1970 GMT,
+   * without allocating a Date or rounding to milliseconds.
+   * @return
+   */
+  public long getTimeNanos() {
+    getSubtype(Type.Code.TIME);
+    ByteArrayView ofs = getOffset();
+    return getTimeNanos(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset());
+  }
+
   public Date getTime() {
     getSubtype(Type.Code.TIME);
     ByteArrayView ofs = getOffset();
-    long seconds = Bytes.getLong(ofs.getBytes(), ofs.getOffset());
-    long fraction = Bytes.getLong(ofs.getBytes(), ofs.getOffset() + 8);
+    return getTime(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset());
+  }
+
+  /**
+   * Read a date in LabRAD time format from the given position.
+   */
+  static Date getTime(byte[] buf, ByteBuffer direct, int ofs) {
+    long seconds = Bytes.getLong(buf, direct, ofs);
+    long fraction = Bytes.getLong(buf, direct, ofs + 8);
     seconds -= DELTA_SECONDS;
     fraction = (long)(((double) fraction) / Long.MAX_VALUE * 1000);
     return new Date(seconds * 1000 + fraction);
@@ -1096,7 +2757,8 @@ public class Data implements Serializable, Cloneable {
     ByteArrayView pos = getOffset();
     int index = Bytes.getInt(pos.getBytes(), pos.getOffset() + 4);
     try {
-      return new String(heap.get(index), STRING_ENCODING);
+      return new String(heap.buf(index), heap.offset(index), heap.length(index),
+          STRING_ENCODING);
     } catch (UnsupportedEncodingException e) {
       throw new RuntimeException("Unsupported string encoding.");
     }
@@ -1133,24 +2795,28 @@ public class Data implements Serializable, Cloneable {
   // setters
   public Data setBool(boolean data) {
     getSubtype(Type.Code.BOOL);
+    checkWritable();
     Bytes.setBool(getOffset(), data);
     return this;
   }
 
   public Data setInt(int data) {
     getSubtype(Type.Code.INT);
+    checkWritable();
     Bytes.setInt(getOffset(), data);
     return this;
   }
 
   public Data setWord(long data) {
     getSubtype(Type.Code.WORD);
+    checkWritable();
     Bytes.setWord(getOffset(), data);
     return this;
   }
 
   public Data setBytes(byte[] data) {
     getSubtype(Type.Code.STR);
+    checkWritable();
     ByteArrayView ofs = getOffset();
     int heapLocation = Bytes.getInt(ofs);
     if (heapLocation == -1) {
@@ -1180,12 +2846,14 @@ public class Data implements Serializable, Cloneable {
 
   public Data setValue(double data) {
     getSubtype(Type.Code.VALUE);
+    checkWritable();
     Bytes.setDouble(getOffset(), data);
     return this;
   }
 
   public Data setComplex(Complex data) {
     getSubtype(Type.Code.COMPLEX);
+    checkWritable();
     Bytes.setComplex(getOffset(), data);
     return this;
   }
@@ -1196,14 +2864,81 @@ public class Data implements Serializable, Cloneable {
 
   public Data setTime(Date date) {
     getSubtype(Type.Code.TIME);
+    checkWritable();
+    ByteArrayView ofs = getOffset();
+    setTime(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset(), date);
+    return this;
+  }
+
+  /**
+   * Set a time from whole seconds since the LabRAD epoch, Jan 1, 1904 GMT,
+   * and a fraction of a second, stored exactly as given.  The fraction is
+   * a count of 1/Long.MAX_VALUE seconds, as in setTime(Date).
+   * @param seconds
+   * @param fraction
+   * @return
+   */
+  public Data setTime(long seconds, long fraction) {
+    getSubtype(Type.Code.TIME);
+    checkWritable();
+    ByteArrayView ofs = getOffset();
+    Bytes.setLong(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset(), seconds);
+    Bytes.setLong(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset() + 8, fraction);
+    return this;
+  }
+
+  /**
+   * Set a time from nanoseconds since the Java epoch, Jan 1, 1970 GMT.
+   * @param nanos
+   * @return
+   */
+  public Data setTimeNanos(long nanos) {
+    getSubtype(Type.Code.TIME);
+    checkWritable();
+    ByteArrayView ofs = getOffset();
+    setTimeNanos(ofs.getBytes(), ofs.getBuffer(), ofs.getOffset(), nanos);
+    return this;
+  }
+
+  /** Nanoseconds in a second. */
+  private static final long NANOS = 1000000000L;
+
+  /**
+   * Read a time in LabRAD time format from the given position, as
+   * nanoseconds since the Java epoch.
+   */
+  static long getTimeNanos(byte[] buf, ByteBuffer direct, int ofs) {
+    long seconds = Bytes.getLong(buf, direct, ofs) - DELTA_SECONDS;
+    long fraction = Bytes.getLong(buf, direct, ofs + 8);
+    return seconds * NANOS + Math.round(((double) fraction) / Long.MAX_VALUE * NANOS);
+  }
+
+  /**
+   * Store a time given as nanoseconds since the Java epoch in LabRAD
+   * time format at the given position.
+   */
+  static void setTimeNanos(byte[] buf, ByteBuffer direct, int ofs, long nanos) {
+    long seconds = nanos / NANOS;
+    long rem = nanos % NANOS;
+    if (rem < 0) {
+      seconds -= 1;
+      rem += NANOS;
+    }
+    long fraction = (long) (((double) rem) / NANOS * Long.MAX_VALUE);
+    Bytes.setLong(buf, direct, ofs, seconds + DELTA_SECONDS);
+    Bytes.setLong(buf, direct, ofs + 8, fraction);
+  }
+
+  /**
+   * Store a date in LabRAD time format at the given position.
+   */
+  static void setTime(byte[] buf, ByteBuffer direct, int ofs, Date date) {
     long millis = date.getTime();
     long seconds = millis / 1000 + DELTA_SECONDS;
     long fraction = millis % 1000;
     fraction = (long)(((double) fraction) / 1000 * Long.MAX_VALUE);
-    ByteArrayView ofs = getOffset();
-    Bytes.setLong(ofs.getBytes(), ofs.getOffset(), seconds);
-    Bytes.setLong(ofs.getBytes(), ofs.getOffset() + 8, fraction);
-    return this;
+    Bytes.setLong(buf, direct, ofs, seconds);
+    Bytes.setLong(buf, direct, ofs + 8, fraction);
   }
 
   public Data setArraySize(int size) {
@@ -1221,6 +2956,7 @@ public class Data implements Serializable, Cloneable {
 
   public Data setArrayShape(int...shape) {
     getSubtype(Type.Code.LIST);
+    checkWritable();
     Type elementType = type.getSubtype(0);
     int depth = type.getDepth();
     if (shape.length != depth) {
@@ -1232,19 +2968,32 @@ public class Data implements Serializable, Cloneable {
       Bytes.setInt(pos.getBytes(), pos.getOffset() + 4*i, shape[i]);
       size *= shape[i];
     }
-    byte[] buf = createFilledByteArray(elementType.dataWidth() * size);
+    int len = elementType.dataWidth() * size;
     int heapIndex = Bytes.getInt(pos.getBytes(), pos.getOffset() + 4*depth);
-    if (heapIndex == -1) {
-      Bytes.setInt(pos.getBytes(), pos.getOffset() + 4*depth, heap.size());
-      heap.add(buf);
+    if (elementType.isFixedWidth() && Heap.isDirect(len)) {
+      // large list of fixed-width data, so store it off the heap
+      ByteBuffer buf = createFilledDirectBuffer(len);
+      if (heapIndex == -1) {
+        Bytes.setInt(pos.getBytes(), pos.getOffset() + 4*depth, heap.size());
+        heap.add(buf);
+      } else {
+        heap.set(heapIndex, buf);
+      }
     } else {
-      heap.set(heapIndex, buf);
+      byte[] buf = createFilledByteArray(len);
+      if (heapIndex == -1) {
+        Bytes.setInt(pos.getBytes(), pos.getOffset() + 4*depth, heap.size());
+        heap.add(buf);
+      } else {
+        heap.set(heapIndex, buf);
+      }
     }
     return this;
   }
 
   public Data setError(int code, String message) {
     getSubtype(Type.Code.ERROR);
+    checkWritable();
     ByteArrayView pos = getOffset();
     Bytes.setInt(pos.getBytes(), pos.getOffset(), code);
     try {
@@ -1269,123 +3018,534 @@ public class Data implements Serializable, Cloneable {
     return this;
   }
 
-  public Data setInt(int data, int...indices) {
-    get(indices).setInt(data);
-    return this;
+  public Data setInt(int data, int...indices) {
+    get(indices).setInt(data);
+    return this;
+  }
+
+  public Data setWord(long data, int...indices) {
+    get(indices).setWord(data);
+    return this;
+  }
+
+  public Data setBytes(byte[] data, int...indices) {
+    get(indices).setBytes(data);
+    return this;
+  }
+
+  public Data setString(String data, int...indices) {
+    get(indices).setString(data);
+    return this;
+  }
+
+  public Data setString(String data, String encoding, int...indices)
+  throws UnsupportedEncodingException {
+    get(indices).setString(data, encoding);
+    return this;
+  }
+
+  public Data setValue(double data, int...indices) {
+    get(indices).setValue(data);
+    return this;
+  }
+
+  public Data setComplex(Complex data, int...indices) {
+    get(indices).setComplex(data);
+    return this;
+  }
+
+  public Data setComplex(double re, double im, int...indices) {
+    return setComplex(new Complex(re, im), indices);
+  }
+
+  public Data setTime(Date date, int...indices) {
+    get(indices).setTime(date);
+    return this;
+  }
+
+  public Data setArraySize(int size, int...indices) {
+    get(indices).setArraySize(size);
+    return this;
+  }
+
+  public Data setArrayShape(int[] shape, int...indices) {
+    get(indices).setArrayShape(shape);
+    return this;
+  }
+
+  public Data setArrayShape(List<Integer> shape, int...indices) {
+    get(indices).setArrayShape(shape);
+    return this;
+  }
+
+  // array getters
+  public boolean[] getBoolArray() {
+    ByteArrayView buf = getListBytes(Type.Code.BOOL, 1);
+    boolean[] result = new boolean[getArraySize()];
+    Bytes.getBools(buf, 0, result, 0, result.length);
+    return result;
+  }
+
+  public int[] getIntArray() {
+    ByteArrayView buf = getListBytes(Type.Code.INT, 1);
+    int[] result = new int[getArraySize()];
+    Bytes.getInts(buf, 0, result, 0, result.length);
+    return result;
+  }
+
+  public long[] getWordArray() {
+    ByteArrayView buf = getListBytes(Type.Code.WORD, 1);
+    long[] result = new long[getArraySize()];
+    Bytes.getWords(buf, 0, result, 0, result.length);
+    return result;
+  }
+
+  public double[] getValueArray() {
+    ByteArrayView buf = getListBytes(Type.Code.VALUE, 1);
+    double[] result = new double[getArraySize()];
+    Bytes.getDoubles(buf, 0, result, 0, result.length);
+    return result;
+  }
+
+  // 2D array getters
+  public boolean[][] getBoolArray2D() {
+    ByteArrayView buf = getListBytes(Type.Code.BOOL, 2);
+    int[] shape = getArrayShape();
+    boolean[][] result = new boolean[shape[0]][shape[1]];
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.getBools(buf, shape[1] * i, result[i], 0, shape[1]);
+    }
+    return result;
+  }
+
+  public int[][] getIntArray2D() {
+    ByteArrayView buf = getListBytes(Type.Code.INT, 2);
+    int[] shape = getArrayShape();
+    int[][] result = new int[shape[0]][shape[1]];
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.getInts(buf, 4 * shape[1] * i, result[i], 0, shape[1]);
+    }
+    return result;
+  }
+
+  public long[][] getWordArray2D() {
+    ByteArrayView buf = getListBytes(Type.Code.WORD, 2);
+    int[] shape = getArrayShape();
+    long[][] result = new long[shape[0]][shape[1]];
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.getWords(buf, 4 * shape[1] * i, result[i], 0, shape[1]);
+    }
+    return result;
+  }
+
+  public double[][] getValueArray2D() {
+    ByteArrayView buf = getListBytes(Type.Code.VALUE, 2);
+    int[] shape = getArrayShape();
+    double[][] result = new double[shape[0]][shape[1]];
+    for (int i = 0; i < shape[0]; i++) {
+      Bytes.getDoubles(buf, 8 * shape[1] * i, result[i], 0, shape[1]);
+    }
+    return result;
+  }
+
+  // 3D array getters
+  public boolean[][][] getBoolArray3D() {
+    ByteArrayView buf = getListBytes(Type.Code.BOOL, 3);
+    int[] shape = getArrayShape();
+    boolean[][][] result = new boolean[shape[0]][shape[1]][shape[2]];
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.getBools(buf, shape[2] * (shape[1] * i + j), result[i][j], 0, shape[2]);
+      }
+    }
+    return result;
+  }
+
+  public int[][][] getIntArray3D() {
+    ByteArrayView buf = getListBytes(Type.Code.INT, 3);
+    int[] shape = getArrayShape();
+    int[][][] result = new int[shape[0]][shape[1]][shape[2]];
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.getInts(buf, 4 * shape[2] * (shape[1] * i + j), result[i][j], 0, shape[2]);
+      }
+    }
+    return result;
+  }
+
+  public long[][][] getWordArray3D() {
+    ByteArrayView buf = getListBytes(Type.Code.WORD, 3);
+    int[] shape = getArrayShape();
+    long[][][] result = new long[shape[0]][shape[1]][shape[2]];
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.getWords(buf, 4 * shape[2] * (shape[1] * i + j), result[i][j], 0, shape[2]);
+      }
+    }
+    return result;
+  }
+
+  public double[][][] getValueArray3D() {
+    ByteArrayView buf = getListBytes(Type.Code.VALUE, 3);
+    int[] shape = getArrayShape();
+    double[][][] result = new double[shape[0]][shape[1]][shape[2]];
+    for (int i = 0; i < shape[0]; i++) {
+      for (int j = 0; j < shape[1]; j++) {
+        Bytes.getDoubles(buf, 8 * shape[2] * (shape[1] * i + j), result[i][j], 0, shape[2]);
+      }
+    }
+    return result;
+  }
+
+  // bulk access to arrays of complex numbers, of any depth, in row-major order
+
+  /**
+   * Get the elements of a complex array as an array holding the real and
+   * imaginary parts of each element in turn.
+   * @return
+   */
+  public double[] getComplexInterleaved() {
+    double[] result = new double[2 * getComplexArraySize()];
+    getComplexInterleaved(result, 0);
+    return result;
+  }
+
+  /**
+   * Copy the elements of a complex array into an existing array, as real
+   * and imaginary parts in turn, without allocating anything.
+   * @param dst
+   * @param dstOfs
+   */
+  public void getComplexInterleaved(double[] dst, int dstOfs) {
+    int size = getComplexArraySize();
+    Bytes.getDoubles(getListBuffer(), 0, dst, dstOfs, 2 * size);
+  }
+
+  /**
+   * Get the real and imaginary parts of a complex array as two arrays.
+   * @return an array holding the real parts and then the imaginary parts
+   */
+  public double[][] getComplexSplit() {
+    int size = getComplexArraySize();
+    double[][] result = new double[2][size];
+    getComplexSplit(result[0], result[1], 0);
+    return result;
   }
 
-  public Data setWord(long data, int...indices) {
-    get(indices).setWord(data);
-    return this;
+  /**
+   * Copy the real and imaginary parts of a complex array into existing
+   * arrays, without allocating anything.
+   * @param re
+   * @param im
+   * @param dstOfs
+   */
+  public void getComplexSplit(double[] re, double[] im, int dstOfs) {
+    int size = getComplexArraySize();
+    ByteArrayView buf = getListBuffer();
+    byte[] bytes = buf.getBytes();
+    ByteBuffer direct = buf.getBuffer();
+    int pos = buf.getOffset();
+    for (int i = 0; i < size; i++, pos += 16) {
+      re[dstOfs + i] = Bytes.getDouble(bytes, direct, pos);
+      im[dstOfs + i] = Bytes.getDouble(bytes, direct, pos + 8);
+    }
   }
 
-  public Data setBytes(byte[] data, int...indices) {
-    get(indices).setBytes(data);
+  /**
+   * Set the elements of a complex array from an array holding the real and
+   * imaginary parts of each element in turn.  The shape of the array must
+   * already be set, and does not change.
+   * @param src
+   * @return
+   */
+  public Data setComplexInterleaved(double[] src) {
+    int size = getComplexArraySize();
+    checkWritable();
+    if (src.length != 2 * size) {
+      throw new RuntimeException("Expected " + 2 * size + " parts but got " + src.length + ".");
+    }
+    Bytes.setDoubles(getListBuffer(), 0, src, 0, src.length);
     return this;
   }
 
-  public Data setString(String data, int...indices) {
-    get(indices).setString(data);
+  /**
+   * Set the elements of a complex array from arrays of real and imaginary
+   * parts.  The shape of the array must already be set, and does not change.
+   * @param re
+   * @param im
+   * @return
+   */
+  public Data setComplexSplit(double[] re, double[] im) {
+    int size = getComplexArraySize();
+    checkWritable();
+    if (re.length != size || im.length != size) {
+      throw new RuntimeException("Expected " + size + " elements but got " +
+          re.length + " real and " + im.length + " imaginary parts.");
+    }
+    setComplexSplit(getListBuffer(), 0, re, im, 0, size);
     return this;
   }
 
-  public Data setString(String data, String encoding, int...indices)
-  throws UnsupportedEncodingException {
-    get(indices).setString(data, encoding);
-    return this;
+  private static void setComplexSplit(ByteArrayView buf, int ofs,
+      double[] re, double[] im, int srcOfs, int len) {
+    byte[] bytes = buf.getBytes();
+    ByteBuffer direct = buf.getBuffer();
+    int pos = buf.getOffset() + ofs;
+    for (int i = 0; i < len; i++, pos += 16) {
+      Bytes.setDouble(bytes, direct, pos, re[srcOfs + i]);
+      Bytes.setDouble(bytes, direct, pos + 8, im[srcOfs + i]);
+    }
   }
 
-  public Data setValue(double data, int...indices) {
-    get(indices).setValue(data);
-    return this;
+  /**
+   * Check that this is an array of complex numbers, of any depth, and get
+   * its total number of elements.
+   */
+  private int getComplexArraySize() {
+    checkListOf(Type.Code.COMPLEX);
+    int size = 1;
+    for (int dim : getArrayShape()) {
+      size *= dim;
+    }
+    return size;
   }
 
-  public Data setComplex(Complex data, int...indices) {
-    get(indices).setComplex(data);
-    return this;
+  // bulk access to arrays of times, of any depth, in row-major order
+
+  /**
+   * Get the elements of a time array as nanoseconds since the Java epoch.
+   * @return
+   */
+  public long[] getTimeNanosArray() {
+    long[] result = new long[getTimeArraySize()];
+    getTimeNanosArray(result, 0);
+    return result;
   }
 
-  public Data setComplex(double re, double im, int...indices) {
-    return setComplex(new Complex(re, im), indices);
+  /**
+   * Copy the elements of a time array into an existing array, as
+   * nanoseconds since the Java epoch, without allocating anything.
+   * @param dst
+   * @param dstOfs
+   */
+  public void getTimeNanosArray(long[] dst, int dstOfs) {
+    int size = getTimeArraySize();
+    ByteArrayView buf = getListBuffer();
+    int pos = buf.getOffset();
+    for (int i = 0; i < size; i++, pos += 16) {
+      dst[dstOfs + i] = getTimeNanos(buf.getBytes(), buf.getBuffer(), pos);
+    }
   }
 
-  public Data setTime(Date date, int...indices) {
-    get(indices).setTime(date);
-    return this;
+  /**
+   * Copy the elements of a time array into existing arrays of whole
+   * seconds and fractions, exactly as they are stored, as for
+   * getTimeSeconds and getTimeFraction.
+   * @param seconds
+   * @param fractions
+   * @param dstOfs
+   */
+  public void getTimeArray(long[] seconds, long[] fractions, int dstOfs) {
+    int size = getTimeArraySize();
+    ByteArrayView buf = getListBuffer();
+    int pos = buf.getOffset();
+    for (int i = 0; i < size; i++, pos += 16) {
+      seconds[dstOfs + i] = Bytes.getLong(buf.getBytes(), buf.getBuffer(), pos);
+      fractions[dstOfs + i] = Bytes.getLong(buf.getBytes(), buf.getBuffer(), pos + 8);
+    }
   }
 
-  public Data setArraySize(int size, int...indices) {
-    get(indices).setArraySize(size);
-    return this;
+  public Date[] getTimeArray() {
+    int size = getTimeArraySize();
+    ByteArrayView buf = getListBuffer();
+    Date[] result = new Date[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = getTime(buf.getBytes(), buf.getBuffer(), buf.getOffset() + 16 * i);
+    }
+    return result;
   }
 
-  public Data setArrayShape(int[] shape, int...indices) {
-    get(indices).setArrayShape(shape);
+  /**
+   * Set the elements of a time array from nanoseconds since the Java epoch.
+   * The shape of the array must already be set, and does not change.
+   * @param nanos
+   * @return
+   */
+  public Data setTimeNanosArray(long[] nanos) {
+    int size = getTimeArraySize();
+    checkWritable();
+    if (nanos.length != size) {
+      throw new RuntimeException("Expected " + size + " elements but got " + nanos.length + ".");
+    }
+    ByteArrayView buf = getListBuffer();
+    int pos = buf.getOffset();
+    for (int i = 0; i < size; i++, pos += 16) {
+      setTimeNanos(buf.getBytes(), buf.getBuffer(), pos, nanos[i]);
+    }
     return this;
   }
 
-  public Data setArrayShape(List<Integer> shape, int...indices) {
-    get(indices).setArrayShape(shape);
+  /**
+   * Set the elements of a time array from whole seconds since the LabRAD
+   * epoch and fractions, stored exactly as given, as for setTime(long, long).
+   * The shape of the array must already be set, and does not change.
+   * @param seconds
+   * @param fractions
+   * @return
+   */
+  public Data setTimeArray(long[] seconds, long[] fractions) {
+    int size = getTimeArraySize();
+    checkWritable();
+    if (seconds.length != size || fractions.length != size) {
+      throw new RuntimeException("Expected " + size + " elements but got " +
+          seconds.length + " seconds and " + fractions.length + " fractions.");
+    }
+    ByteArrayView buf = getListBuffer();
+    int pos = buf.getOffset();
+    for (int i = 0; i < size; i++, pos += 16) {
+      Bytes.setLong(buf.getBytes(), buf.getBuffer(), pos, seconds[i]);
+      Bytes.setLong(buf.getBytes(), buf.getBuffer(), pos + 8, fractions[i]);
+    }
     return this;
   }
 
-  // array getters
-  public boolean[] getBoolArray() {
-    getSubtype(Type.Code.LIST);
-    getSubtype(Type.Code.BOOL, 0);
-    int len = getArraySize();
-    boolean[] result = new boolean[len];
-    for (int i = 0; i < len; i++) {
-      result[i] = get(i).getBool();
+  /**
+   * Check that this is an array of times, of any depth, and get its total
+   * number of elements.
+   */
+  private int getTimeArraySize() {
+    checkListOf(Type.Code.TIME);
+    int size = 1;
+    for (int dim : getArrayShape()) {
+      size *= dim;
     }
-    return result;
+    return size;
   }
 
-  public int[] getIntArray() {
-    getSubtype(Type.Code.LIST);
-    getSubtype(Type.Code.INT, 0);
-    int len = getArraySize();
-    int[] result = new int[len];
-    for (int i = 0; i < len; i++) {
-      result[i] = get(i).getInt();
+  // columnar getters for lists of clusters
+
+  /**
+   * Get the fields of a list of clusters as columns, with one primitive
+   * array per field: boolean[] for b, int[] for i, long[] for w and double[]
+   * for v.  The fields are read directly from the list body using the
+   * cluster layout, without creating a Data object for each element.
+   * @return
+   */
+  public Object[] getColumns() {
+    ByteArrayView buf = getListBytes(Type.Code.CLUSTER, 1);
+    Type cluster = type.getSubtype(0);
+    int rows = getArraySize();
+    int stride = cluster.dataWidth();
+    Object[] columns = new Object[cluster.size()];
+    for (int j = 0; j < columns.length; j++) {
+      columns[j] = getColumn(buf, cluster.getOffset(j), stride, rows, cluster.getSubtype(j));
     }
-    return result;
+    return columns;
   }
 
-  public long[] getWordArray() {
+  /**
+   * Get the columns of a list of clusters of values, *(v...), or of a
+   * two-dimensional array of values, *2v.  The result is indexed first by
+   * column and then by row.
+   * @return
+   */
+  public double[][] getValueColumns() {
     getSubtype(Type.Code.LIST);
-    getSubtype(Type.Code.WORD, 0);
-    int len = getArraySize();
-    long[] result = new long[len];
-    for (int i = 0; i < len; i++) {
-      result[i] = get(i).getWord();
+    if (type.getDepth() == 2) {
+      ByteArrayView buf = getListBytes(Type.Code.VALUE, 2);
+      int[] shape = getArrayShape();
+      double[][] result = new double[shape[1]][];
+      for (int j = 0; j < shape[1]; j++) {
+        result[j] = new double[shape[0]];
+        int pos = buf.getOffset() + 8 * j;
+        for (int i = 0; i < shape[0]; i++, pos += 8 * shape[1]) {
+          result[j][i] = Bytes.getDouble(buf.getBytes(), buf.getBuffer(), pos);
+        }
+      }
+      return result;
     }
-    return result;
+    Type cluster = type.getSubtype(0);
+    for (int j = 0; j < cluster.size(); j++) {
+      if (cluster.getSubtype(j).getCode() != Type.Code.VALUE) {
+        throw new RuntimeException("Type mismatch: expecting list of clusters of values" +
+            " but found " + type + " instead.");
+      }
+    }
+    Object[] columns = getColumns();
+    return Arrays.copyOf(columns, columns.length, double[][].class);
   }
 
-  public double[] getValueArray() {
-    getSubtype(Type.Code.LIST);
-    getSubtype(Type.Code.VALUE, 0);
-    int len = getArraySize();
-    double[] result = new double[len];
-    for (int i = 0; i < len; i++) {
-      result[i] = get(i).getValue();
+  /**
+   * Read one field of each element in a list body into a primitive array.
+   * @param buf the list body
+   * @param ofs offset of the field in the first element
+   * @param stride width of each element
+   * @param rows number of elements
+   * @param fieldType type of the field
+   * @return
+   */
+  private static Object getColumn(ByteArrayView buf, int ofs, int stride, int rows, Type fieldType) {
+    byte[] bytes = buf.getBytes();
+    ByteBuffer direct = buf.getBuffer();
+    int pos = buf.getOffset() + ofs;
+    switch (fieldType.getCode()) {
+      case BOOL:
+        boolean[] bools = new boolean[rows];
+        for (int i = 0; i < rows; i++, pos += stride) {
+          bools[i] = Bytes.getBool(bytes, direct, pos);
+        }
+        return bools;
+      case INT:
+        int[] ints = new int[rows];
+        for (int i = 0; i < rows; i++, pos += stride) {
+          ints[i] = Bytes.getInt(bytes, direct, pos);
+        }
+        return ints;
+      case WORD:
+        long[] words = new long[rows];
+        for (int i = 0; i < rows; i++, pos += stride) {
+          words[i] = Bytes.getWord(bytes, direct, pos);
+        }
+        return words;
+      case VALUE:
+        double[] values = new double[rows];
+        for (int i = 0; i < rows; i++, pos += stride) {
+          values[i] = Bytes.getDouble(bytes, direct, pos);
+        }
+        return values;
+      default:
+        throw new RuntimeException("Cannot get a column of type " + fieldType + ".");
     }
-    return result;
   }
-  
-  public double[][] getValueArray2D() {
-    getSubtype(Type.Code.LIST);
-    getSubtype(Type.Code.VALUE, 0, 0);
-    int[] shape = getArrayShape();
-    double[][] result = new double[shape[0]][];
-    for (int i = 0; i < shape[0]; i++) {
-      result[i] = new double[shape[1]];
-      for (int j = 0; j < shape[1]; j++) {
-        result[i][j] = get(i, j).getValue();
+
+  /**
+   * Write a primitive array into one field of each element in a list body.
+   */
+  private static void setColumn(ByteArrayView buf, int ofs, int stride, Object column) {
+    byte[] bytes = buf.getBytes();
+    ByteBuffer direct = buf.getBuffer();
+    int pos = buf.getOffset() + ofs;
+    if (column instanceof boolean[]) {
+      for (boolean b : (boolean[]) column) {
+        Bytes.setBool(bytes, direct, pos, b);
+        pos += stride;
+      }
+    } else if (column instanceof int[]) {
+      for (int i : (int[]) column) {
+        Bytes.setInt(bytes, direct, pos, i);
+        pos += stride;
+      }
+    } else if (column instanceof long[]) {
+      for (long w : (long[]) column) {
+        Bytes.setWord(bytes, direct, pos, w);
+        pos += stride;
+      }
+    } else {
+      for (double v : (double[]) column) {
+        Bytes.setDouble(bytes, direct, pos, v);
+        pos += stride;
       }
     }
-    return result;
   }
 
   public String[] getStringArray() {
@@ -1517,7 +3677,7 @@ public class Data implements Serializable, Cloneable {
 
 
   // some basic tests of the data object
-  public static void main(String[] args) throws IOException {
+  public static void main(String[] args) throws IOException, InterruptedException {
     Random rand = new Random();
     boolean b;
     int i, count;
@@ -1641,6 +3801,833 @@ public class Data implements Serializable, Cloneable {
     d2 = fromBytes(flat, Type.fromTag("*3s"));
     System.out.println(d2.pretty());
 
+    // test flattening to and from direct byte buffers
+    for (count = 0; count < 1000; count++) {
+      d1 = Hydrant.getRandomData();
+      flat = d1.toBytes();
+      ByteBuffer bb = ByteBuffer.allocateDirect(flat.length + 3);
+      bb.order(ByteOrder.LITTLE_ENDIAN).position(3);
+      d1.writeTo(bb);
+      assert bb.position() == flat.length + 3;
+      byte[] written = new byte[flat.length];
+      bb.position(3);
+      bb.get(written);
+      assert Arrays.equals(flat, written);
+      bb.position(3);
+      d2 = readFrom(bb, d1.getType());
+      assert bb.position() == flat.length + 3;
+      assert Arrays.equals(flat, d2.toBytes());
+      assert d1.flattenedSize() == flat.length;
+    }
+    System.out.println("ByteBuffer okay.");
+
+    // test lazy unflattening
+    for (count = 0; count < 1000; count++) {
+      d1 = Hydrant.getRandomData();
+      flat = d1.toBytes();
+      byte[] padded = new byte[flat.length + 6];
+      System.arraycopy(flat, 0, padded, 2, flat.length);
+      d2 = fromBytesLazy(padded, 2, flat.length, d1.getType());
+      assert d2.flattenedSize() == flat.length;
+      assert Arrays.equals(flat, d2.toBytes());
+      assert !d2.isDecoded();
+      assert d2.pretty().equals(d1.pretty());
+      d2.cursor();
+      assert d2.isDecoded();
+      assert Arrays.equals(flat, d2.toBytes());
+    }
+    // several threads reading the same lazy object decode it only once
+    double[] ramp = new double[100000];
+    for (int j = 0; j < ramp.length; j++) {
+      ramp[j] = j;
+    }
+    flat = valueOf(ramp).toBytes();
+    for (count = 0; count < 20; count++) {
+      final Data shared = fromBytesLazy(flat, 0, flat.length, Type.fromTag("*v"));
+      final Data[] views = new Data[4];
+      Thread[] threads = new Thread[views.length];
+      for (int t = 0; t < threads.length; t++) {
+        final int index = t;
+        threads[t] = new Thread() {
+          public void run() {
+            views[index] = shared.get(index);
+          }
+        };
+        threads[t].start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      shared.setValue(-1, 2);
+      for (int t = 0; t < views.length; t++) {
+        assert views[t].getValue() == (t == 2 ? -1 : t);
+      }
+    }
+    System.out.println("Lazy unflattening okay.");
+
+    // test unflattening into the heap slab, with enough pieces to need several chunks
+    d1 = new Data("*(s*v)");
+    d1.setArraySize(5000);
+    for (int k = 0; k < 5000; k++) {
+      d1.setString("name" + k, k, 0);
+      d1.get(k, 1).setArraySize(k % 7);
+      for (int j = 0; j < k % 7; j++) {
+        d1.setValue(k + 0.5 * j, k, 1, j);
+      }
+    }
+    flat = d1.toBytes();
+    d2 = fromBytes(flat, d1.getType());
+    assert Arrays.equals(flat, d2.toBytes());
+    assert d2.get(4999, 0).getString().equals("name4999");
+    assert d2.get(4997, 1).getValueArray()[3] == 4997 + 1.5;
+    d2.setString("renamed", 1234, 0);
+    d2.get(1234, 1).setValue(-1.0, 1);
+    assert d2.get(1233, 0).getString().equals("name1233");
+    assert d2.get(1234, 0).getString().equals("renamed");
+    assert d2.get(1235, 0).getString().equals("name1235");
+    assert d2.get(1234, 1).getValueArray()[1] == -1.0;
+    assert d2.get(1235, 1).getValueArray()[0] == 1235.0;
+    // reading from a stream consumes just the bytes of each object
+    {
+      ByteArrayOutputStream joined = new ByteArrayOutputStream();
+      joined.write(flat);
+      joined.write(valueOf("tail").toBytes());
+      ByteArrayInputStream is = new ByteArrayInputStream(joined.toByteArray());
+      assert Arrays.equals(flat, fromBytes(is, d1.getType()).toBytes());
+      assert fromBytes(is, Type.fromTag("s")).getString().equals("tail");
+      assert is.available() == 0;
+      try {
+        fromBytes(new ByteArrayInputStream(flat, 0, flat.length - 1), d1.getType());
+        assert false;
+      } catch (EOFException e) {
+        // truncated data is rejected
+      }
+    }
+    System.out.println("Heap slab okay.");
+
+    // test heap compaction
+    d1 = new Data("(s*(s*v))");
+    d1.setString("first", 0);
+    d1.setString("second", 0);
+    d1.get(1).setArraySize(100);
+    for (int k = 0; k < 100; k++) {
+      d1.setString("row" + k, 1, k, 0);
+      d1.get(1, k, 1).setArraySize(10);
+    }
+    d1.get(1).setArraySize(3); // orphans the old rows and everything in them
+    for (int k = 0; k < 3; k++) {
+      d1.setString("row" + k, 1, k, 0);
+      d1.get(1, k, 1).setArraySize(2);
+    }
+    flat = d1.toBytes();
+    d2 = d1.get(1, 1);
+    assert d1.compact() == (10 * 4 + 90 * 5) + 100 * 8 * 10;
+    assert d1.compact() == 0;
+    assert Arrays.equals(flat, d1.toBytes());
+    d2.setValue(2.5, 1, 1);
+    assert d1.get(1, 1, 1, 1).getValue() == 2.5;
+    d1.setString("third", 0);
+    assert d1.get(0).getString().equals("third");
+    assert d1.get(1, 1, 0).getString().equals("row1");
+
+    // orphaned buffers are reclaimed automatically once they take up enough space
+    d1 = new Data("(s*s)");
+    d1.setString("name", 0);
+    for (count = 0; count < 100; count++) {
+      d1.get(1).setArraySize(1000);
+      for (int k = 0; k < 1000; k++) {
+        d1.setString("a string that is exactly 48 characters long.....", 1, k);
+      }
+    }
+    assert d1.heap.getTotalBytes() < 100 * 1000 * 48 / 2;
+    assert d1.get(0).getString().equals("name");
+    assert d1.get(1).getArraySize() == 1000;
+    // including when other data is copied over what was there
+    d2 = valueOf(new String(new char[1000]).replace('\0', 'x'));
+    for (count = 0; count < 20000; count++) {
+      d1.get(0).set(d2);
+    }
+    assert d1.heap.getTotalBytes() < 4 * 1000 * 1000;
+    assert d1.get(0).getString().equals(d2.getString());
+    assert d1.get(1).getArraySize() == 1000;
+    System.out.println("Heap compaction okay.");
+
+    // test list bodies stored off the heap
+    setDirectThreshold(64);
+    try {
+      for (count = 0; count < 1000; count++) {
+        d1 = Hydrant.getRandomData();
+        flat = d1.toBytes();
+        d2 = fromBytes(flat, d1.getType());
+        assert Arrays.equals(flat, d2.toBytes());
+        assert d2.pretty().equals(d1.pretty());
+        ByteBuffer[] bufs = d2.toByteBuffers();
+        ByteBuffer joined = ByteBuffer.allocate(flat.length);
+        for (ByteBuffer piece : bufs) {
+          joined.put(piece);
+        }
+        assert !joined.hasRemaining() && Arrays.equals(flat, joined.array());
+      }
+      double[] vals = new double[1000];
+      for (int k = 0; k < vals.length; k++) {
+        vals[k] = k * 0.25;
+      }
+      d1 = valueOf(vals);
+      assert d1.heap.direct(0) != null;
+      assert Arrays.equals(vals, d1.getValueArray());
+      d1.setValue(-3.0, 17);
+      assert d1.get(17).getValue() == -3.0 && d1.getValueFlat(17) == -3.0;
+      assert d1.cursor().down(17).getValue() == -3.0;
+      assert d1.toByteBuffers().length == 3;
+      d2 = fromBytes(d1.toBytes(), d1.getType());
+      assert d2.heap.direct(0) != null && d2.get(17).getValue() == -3.0;
+      d1 = new Data("*(v[Hz] i t)");
+      d1.setArraySize(100);
+      d1.setValue(1.5, 99, 0).setInt(-7, 99, 1).setTime(new Date(123456789L), 99, 2);
+      d2 = fromBytes(d1.toBytes(), d1.getType());
+      assert d2.get(99, 0).getValue() == 1.5 && d2.get(99, 1).getInt() == -7;
+      assert d2.get(99, 2).getTime().equals(new Date(123456789L));
+      assert Arrays.equals(d2.get(99).toBytes(), d1.get(99).toBytes());
+      int[][] ints = new int[20][30];
+      ints[19][29] = 42;
+      d1 = valueOf(ints);
+      assert Arrays.deepEquals(ints, d1.getIntArray2D()) && d1.get(19, 29).getInt() == 42;
+      d1.release();
+      try {
+        d1.getIntArray2D();
+        assert false;
+      } catch (IllegalStateException e) {
+        // released data can't be used
+      }
+      assert Arrays.deepEquals(ints, valueOf(ints).getIntArray2D());
+      // fixed-width data share the empty heap, so releasing them is harmless
+      valueOf(1.0).release();
+      assert valueOf(2).getInt() == 2 && valueOf(1.0).getValue() == 1.0;
+      // views hold on to the direct buffer, which is pooled and reused
+      d1 = valueOf(new double[10][10]);
+      d2 = d1.get(3, 4);
+      DataCursor cursor = d1.cursor().down(3, 4);
+      d1.release();
+      double[][] reused = new double[10][10];
+      for (double[] row : reused) {
+        Arrays.fill(row, 42.0);
+      }
+      Data other = valueOf(reused);
+      try {
+        d2.getValue();
+        assert false;
+      } catch (IllegalStateException e) {
+        // views into released data can't be used either
+      }
+      try {
+        d2.toBytes();
+        assert false;
+      } catch (IllegalStateException e) {
+        // or flattened
+      }
+      try {
+        d2.toByteBuffers();
+        assert false;
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      try {
+        cursor.getValue();
+        assert false;
+      } catch (IllegalStateException e) {
+        // nor can cursors
+      }
+      assert other.get(3, 4).getValue() == 42.0;
+    } finally {
+      setDirectThreshold(Integer.MAX_VALUE);
+    }
+    System.out.println("Off-heap lists okay.");
+
+    // test saving and mapping data files
+    File file = File.createTempFile("labrad", ".dat");
+    try {
+      double[][] trace = new double[300][500];
+      trace[299][499] = 2.5;
+      d1 = new Data("(s*2v[mV]*(s t))");
+      d1.setString("calibration", 0);
+      d1.get(1).set(valueOf(trace, "mV"));
+      d1.setArraySize(2, 2).setString("a", 2, 0, 0).setString("b", 2, 1, 0);
+      d1.setTime(new Date(1000L), 2, 1, 1);
+      d1.save(file);
+      d2 = map(file);
+      assert d2.isReadOnly() && !d1.isReadOnly();
+      assert d2.getType().equals(d1.getType());
+      assert Arrays.equals(d1.toBytes(), d2.toBytes());
+      assert d2.get(1, 299, 499).getValue() == 2.5;
+      assert Arrays.deepEquals(trace, d2.get(1).getValueArray2D());
+      assert d2.get(2, 0, 0).getString().equals("a");
+      try {
+        d2.setValue(1.0, 1, 0, 0);
+        assert false;
+      } catch (UnsupportedOperationException e) {
+        // mapped data is read-only
+      }
+      try {
+        d2.cursor().down(0).setString("x");
+        assert false;
+      } catch (UnsupportedOperationException e) {
+        // mapped data is read-only
+      }
+      Data d3 = d2.clone();
+      assert !d3.isReadOnly();
+      d3.setValue(1.0, 1, 0, 0);
+      assert d2.get(1, 0, 0).getValue() == 0.0;
+      d2.release();
+      d1 = valueOf(3);
+      d1.save(file);
+      assert map(file).getInt() == 3;
+      // files too large to map in one piece are rejected, not mapped
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(Integer.MAX_VALUE + 1L);
+      } finally {
+        raf.close();
+      }
+      try {
+        map(file);
+        assert false;
+      } catch (IOException e) {
+        // files are limited to 2 GB
+      }
+    } finally {
+      file.delete();
+    }
+    System.out.println("Data files okay.");
+
+    // test bulk array getters
+    d1 = new Data("*2v");
+    d1.setArrayShape(3, 5);
+    for (int m = 0; m < 3; m++) {
+      for (int n = 0; n < 5; n++) {
+        d1.setValue(rand.nextGaussian(), m, n);
+      }
+    }
+    double[][] vals2D = d1.getValueArray2D();
+    for (int m = 0; m < 3; m++) {
+      for (int n = 0; n < 5; n++) {
+        assert vals2D[m][n] == d1.get(m, n).getValue();
+      }
+    }
+    d1 = new Data("*3i");
+    d1.setArrayShape(2, 3, 4);
+    for (int m = 0; m < 2; m++) {
+      for (int n = 0; n < 3; n++) {
+        for (int p = 0; p < 4; p++) {
+          d1.setInt(rand.nextInt(), m, n, p);
+        }
+      }
+    }
+    int[][][] ints3D = d1.getIntArray3D();
+    for (int m = 0; m < 2; m++) {
+      for (int n = 0; n < 3; n++) {
+        for (int p = 0; p < 4; p++) {
+          assert ints3D[m][n][p] == d1.get(m, n, p).getInt();
+        }
+      }
+    }
+    d1 = Data.clusterOf(new Data("*w").setArraySize(10), new Data("*b").setArraySize(10));
+    for (count = 0; count < 10; count++) {
+      d1.setWord(Math.abs(rand.nextLong()) % 4294967296L, 0, count);
+      d1.setBool(rand.nextBoolean(), 1, count);
+    }
+    long[] words = d1.get(0).getWordArray();
+    boolean[] bools = d1.get(1).getBoolArray();
+    for (count = 0; count < 10; count++) {
+      assert words[count] == d1.get(0, count).getWord();
+      assert bools[count] == d1.get(1, count).getBool();
+    }
+    System.out.println("Array getters okay.");
+
+    // test bulk array constructors
+    double[][][] vals3D = new double[3][4][5];
+    long[][] words2D = new long[4][6];
+    for (int m = 0; m < 3; m++) {
+      for (int n = 0; n < 4; n++) {
+        for (int p = 0; p < 5; p++) {
+          vals3D[m][n][p] = rand.nextGaussian();
+        }
+        words2D[n][m] = Math.abs(rand.nextLong()) % 4294967296L;
+      }
+    }
+    assert Arrays.deepEquals(vals3D, Data.valueOf(vals3D, "V").getValueArray3D());
+    assert Arrays.deepEquals(words2D, Data.valueOf(words2D).getWordArray2D());
+    assert Arrays.equals(bools, Data.valueOf(bools).getBoolArray());
+    assert Data.valueOf(new int[0][5]).getArrayShape()[1] == 0;
+
+    // test columnar access to lists of clusters
+    long[] ids = {3, 1, 4, 1, 5};
+    double[] xs = {0.5, 1.5, 2.5, 3.5, 4.5};
+    int[] counts = {-2, 7, 1, 8, 2};
+    boolean[] flags = {true, false, false, true, true};
+    d1 = columnsOf(ids, xs, counts, flags);
+    assert d1.getType().equals(Type.fromTag("*(wvib)"));
+    assert d1.get(3, 0).getWord() == 1 && d1.get(4, 1).getValue() == 4.5;
+    assert d1.get(0, 2).getInt() == -2 && !d1.get(2, 3).getBool();
+    Object[] cols = d1.getColumns();
+    assert Arrays.equals(ids, (long[]) cols[0]) && Arrays.equals(xs, (double[]) cols[1]);
+    assert Arrays.equals(counts, (int[]) cols[2]) && Arrays.equals(flags, (boolean[]) cols[3]);
+    d1 = valueOfColumns(new String[] {"Hz", "dBm"}, xs, xs);
+    assert d1.getType().equals(Type.fromTag("*(v[Hz]v[dBm])"));
+    double[][] vcols = d1.getValueColumns();
+    assert vcols.length == 2 && Arrays.equals(xs, vcols[1]);
+    d1 = valueOf(vals2D);
+    vcols = d1.getValueColumns();
+    for (int r = 0; r < vals2D.length; r++) {
+      for (int col = 0; col < vals2D[r].length; col++) {
+        assert vcols[col][r] == vals2D[r][col];
+      }
+    }
+    try {
+      columnsOf(ids, new double[2]);
+      assert false;
+    } catch (RuntimeException e) {
+      // columns must have equal lengths
+    }
+    System.out.println("Columns okay.");
+
+    // test bulk complex arrays
+    double[] res = {1, 2, 3, 4}, ims = {-1, 0.5, 0, 8};
+    d1 = valueOf(res, ims, "V");
+    assert d1.getType().equals(Type.fromTag("*c[V]"));
+    assert d1.get(1).getComplex().equals(new Complex(2, 0.5));
+    double[] iq = d1.getComplexInterleaved();
+    assert Arrays.equals(iq, new double[] {1, -1, 2, 0.5, 3, 0, 4, 8});
+    assert Arrays.equals(d1.toBytes(), valueOfComplex(iq, "V").toBytes());
+    double[][] parts = d1.getComplexSplit();
+    assert Arrays.equals(res, parts[0]) && Arrays.equals(ims, parts[1]);
+    double[] reOut = new double[6], imOut = new double[6];
+    d1.getComplexSplit(reOut, imOut, 2);
+    assert reOut[5] == 4 && imOut[3] == 0.5;
+    d1.setComplexInterleaved(new double[8]);
+    assert d1.get(3).getComplex().equals(new Complex(0, 0));
+    double[][] re2D = {{1, 2, 3}, {4, 5, 6}}, im2D = {{6, 5, 4}, {3, 2, 1}};
+    d1 = valueOf(re2D, im2D);
+    assert d1.get(1, 2).getComplex().equals(new Complex(6, 1));
+    assert d1.getComplexSplit()[1][3] == 3;
+    setDirectThreshold(16);
+    try {
+      d1 = valueOf(res, ims);
+      assert d1.heap.direct(0) != null;
+      assert Arrays.equals(ims, d1.getComplexSplit()[1]);
+      assert Arrays.equals(iq, valueOfComplex(iq).getComplexInterleaved());
+    } finally {
+      setDirectThreshold(Integer.MAX_VALUE);
+    }
+    try {
+      valueOf(res, new double[3]);
+      assert false;
+    } catch (RuntimeException e) {
+      // parts must have the same length
+    }
+    System.out.println("Complex arrays okay.");
+
+    // test high-precision times
+    d1 = new Data("t");
+    long nanos = 1234567890123456789L;
+    d1.setTimeNanos(nanos);
+    assert Math.abs(d1.getTimeNanos() - nanos) <= 1;
+    assert d1.getTime().getTime() == nanos / 1000000;
+    assert d1.getTimeSeconds() == nanos / 1000000000L + DELTA_SECONDS;
+    d1.setTime(d1.getTimeSeconds(), 12345L);
+    assert d1.getTimeFraction() == 12345L;
+    d1.setTimeNanos(-1500000000L);
+    assert d1.getTimeNanos() == -1500000000L && d1.getTime().getTime() == -1500;
+    d1.setTime(new Date(1000L));
+    assert d1.getTimeNanos() == 1000000000L;
+    long[] stamps = new long[1000];
+    for (int k = 0; k < stamps.length; k++) {
+      stamps[k] = nanos + 37 * k;
+    }
+    d1 = valueOfTimeNanos(stamps);
+    long[] stampsOut = d1.getTimeNanosArray();
+    for (int k = 0; k < stamps.length; k++) {
+      assert Math.abs(stampsOut[k] - stamps[k]) <= 1;
+    }
+    long[] secs = new long[1000], fracs = new long[1000];
+    d1.getTimeArray(secs, fracs, 0);
+    assert Arrays.equals(d1.toBytes(), new Data("*t").setArraySize(1000)
+        .setTimeArray(secs, fracs).toBytes());
+    Date[] dates = {new Date(0), new Date(1234567890123L)};
+    assert Arrays.equals(dates, valueOf(dates).getTimeArray());
+    assert valueOf(dates).get(1).getTime().equals(dates[1]);
+    System.out.println("Times okay.");
+
+    // test raw copies
+    Data d3;
+    Hydrant.random = new Random(2);
+    for (int k = 0; k < 500; k++) {
+      d1 = Hydrant.getRandomData();
+      d2 = d1.clone();
+      assert Arrays.equals(d1.toBytes(), d2.toBytes());
+      d3 = new Data(d1.getType()).set(d1);
+      assert Arrays.equals(d1.toBytes(), d3.toBytes());
+      d2 = fromBytesLazy(d1.toBytes(), 0, d1.flattenedSize(), d1.getType()).clone();
+      assert !d2.isDecoded() && Arrays.equals(d1.toBytes(), d2.toBytes());
+    }
+    d1 = new Data("(s*(sEw*v)Ew(iw))");
+    d1.setString("top", 0).setArraySize(2, 1);
+    d1.setString("a", 1, 0, 0).get(1, 0, 1).setError(3, "first");
+    d1.setString("b", 1, 1, 0).get(1, 1, 1).setError(4, "second");
+    d1.get(1, 0, 2).set(valueOf(new double[] {1, 2, 3}));
+    d1.get(1, 1, 2).set(valueOf(new double[0]));
+    d1.get(2).setError(5, "outer");
+    d1.setInt(-1, 3, 0).setWord(7, 3, 1);
+    d2 = d1.clone();
+    assert Arrays.equals(d1.toBytes(), d2.toBytes());
+    d2.setString("changed", 1, 0, 0).get(1, 1, 1).setError(9, "x");
+    assert d1.get(1, 0, 0).getString().equals("a") && d1.get(1, 1, 1).getErrorCode() == 4;
+    d3 = d1.get(1, 1).clone();
+    assert d3.get(1).getErrorMessage().equals("second") && d3.get(2).getArraySize() == 0;
+    d1.get(1, 0).set(d3);
+    assert Arrays.equals(d1.get(1, 0).toBytes(), d3.toBytes());
+    d3 = new Data("*v[mV]").set(valueOf(new double[] {4, 5}));
+    assert d3.getType().equals(Type.fromTag("*v[mV]")) && d3.get(1).getValue() == 5;
+    setDirectThreshold(16);
+    try {
+      d1 = valueOf(new double[] {1, 2, 3, 4});
+      assert d1.heap.direct(0) != null;
+      d2 = d1.clone();
+      d2.setValue(9, 0);
+      assert d1.get(0).getValue() == 1 && d2.get(3).getValue() == 4;
+      d3 = d1.get(2).clone();
+      assert d3.getValue() == 3;
+      d1.get(1).set(valueOf(8.0));
+      assert d1.get(1).getValue() == 8.0;
+    } finally {
+      setDirectThreshold(Integer.MAX_VALUE);
+    }
+    System.out.println("Raw copies okay.");
+
+    // test frozen data
+    d1 = new Data("(s*v(iw))");
+    d1.setString("frozen", 0);
+    d1.get(1).set(valueOf(new double[] {1, 2}));
+    d1.setInt(3, 2, 0).setWord(4, 2, 1);
+    d2 = d1.freeze();
+    assert d2.isReadOnly() && !d1.isReadOnly() && d2.freeze() == d2;
+    assert Arrays.equals(d1.toBytes(), d2.toBytes());
+    d1.setString("changed", 0);
+    assert d2.get(0).getString().equals("frozen");
+    try {
+      d2.setString("x", 0);
+      assert false;
+    } catch (UnsupportedOperationException e) {
+      // frozen data is read-only
+    }
+    try {
+      d2.get(1).setArraySize(5);
+      assert false;
+    } catch (UnsupportedOperationException e) {
+      // views into frozen data are read-only too
+    }
+    assert d2.toBytes() != d2.toBytes() && d2.frozenBytes != null;
+    assert d2.toByteBuffers()[0].isReadOnly();
+    assert d2.compact() == 0;
+    d3 = d2.clone();
+    assert !d3.isReadOnly() && Arrays.equals(d3.toBytes(), d2.toBytes());
+    d3 = valueOf(5).freeze();
+    assert d3.isReadOnly() && !valueOf(6).isReadOnly();
+    System.out.println("Frozen data okay.");
+
+    // test slicing and reshaping views
+    d1 = valueOf(new double[][] {{0, 1, 2}, {3, 4, 5}, {6, 7, 8}, {9, 10, 11}});
+    d2 = d1.row(1);
+    assert d2.getTag().equals("*v") && Arrays.equals(d2.getValueArray(), new double[] {3, 4, 5});
+    d2.setValue(40, 1);
+    assert d1.get(1, 1).getValue() == 40;
+    d1.get(1, 1).setValue(4);
+    d2 = d1.slice(0, 1, 3);
+    assert Arrays.equals(d2.getArrayShape(), new int[] {2, 3});
+    assert Arrays.equals(d2.toBytes(),
+        valueOf(new double[][] {{3, 4, 5}, {6, 7, 8}}).toBytes());
+    assert Arrays.equals(fromBytes(d2.toBytes(), d2.getType()).getValueArray2D()[1],
+        new double[] {6, 7, 8});
+    d2 = d1.slice(1, 1, 3);
+    assert Arrays.equals(d2.toBytes(),
+        valueOf(new double[][] {{1, 2}, {4, 5}, {7, 8}, {10, 11}}).toBytes());
+    d2 = d1.reshape(2, 6).row(1);
+    assert Arrays.equals(d2.getValueArray(), new double[] {6, 7, 8, 9, 10, 11});
+    assert d1.reshape(12).getArraySize() == 12 && d1.slice(0, 2, 2).getArrayShape()[0] == 0;
+    d2 = d1.reshape(4, 3, 1).slice(0, 3, 4);
+    assert d2.getTag().equals("*3v") && d2.get(0, 2, 0).getValue() == 11;
+    d2 = new Data("*3v").setArrayShape(2, 3, 0).slice(1, 0, 2);
+    assert Arrays.equals(d2.getArrayShape(), new int[] {2, 2, 0});
+    assert Arrays.equals(d2.toBytes(), new Data("*3v").setArrayShape(2, 2, 0).toBytes());
+    d2 = new Data("*s").setArraySize(4);
+    for (int j = 0; j < 4; j++) {
+      d2.setString("s" + j, j);
+    }
+    d2 = d2.reshape(2, 2).row(1).slice(0, 1, 2);
+    assert d2.getArraySize() == 1 && d2.get(0).getString().equals("s3");
+    d2 = d1.freeze().row(0);
+    assert d2.isReadOnly() && d2.get(2).getValue() == 2;
+    d2 = d1.row(2);
+    d3 = d1.slice(0, 0, 1);
+    d3.release();
+    assert d2.get(0).getValue() == 6 && d1.get(0, 0).getValue() == 0;
+    d3 = d1.clone();
+    d2 = d3.row(1);
+    d3.release();
+    try {
+      d2.get(0).getValue();
+      assert false;
+    } catch (IllegalStateException e) {
+      // views can't be used once the data they came from is released
+    }
+    try {
+      d1.reshape(5, 2);
+      assert false;
+    } catch (RuntimeException e) {
+      // size must match
+    }
+    System.out.println("Array views okay.");
+
+    // test content equality, hashing and digests
+    d1 = valueOf(new double[][] {{1, 2}, {3, 4}});
+    d2 = d1.clone();
+    assert d1.equals(d2) && d1.hashCode() == d2.hashCode();
+    assert d1.hashCode() == 31 * d1.getTag().hashCode() + Arrays.hashCode(d1.toBytes());
+    assert d1.row(1).equals(valueOf(new double[] {3, 4}));
+    assert !valueOf(1.0, "m").equals(valueOf(1.0)) && !d1.equals(d1.reshape(4));
+    d2.get(1, 1).setValue(5);
+    assert !d1.equals(d2) && !Arrays.equals(d1.digest(), d2.digest());
+    d2.get(1, 1).setValue(4);
+    assert Arrays.equals(d1.digest(), d2.digest()) && d1.digest("SHA-1").length == 20;
+    d3 = d1.freeze();
+    assert d3.equals(d1) && d3.hashCode() == d1.hashCode() && d3.hash != 0;
+    assert Arrays.equals(d3.digest(), d1.digest()) && d3.frozenDigest != null;
+    Map<Data, String> cache = new HashMap<Data, String>();
+    cache.put(valueOf("x").freeze(), "cached");
+    assert "cached".equals(cache.get(fromBytes(valueOf("x").toBytes(), Type.fromTag("s"))));
+    // data that has not been filled in yet can still be hashed and compared
+    assert new Data("s").hashCode() == new Data("s").hashCode();
+    assert new Data("*s").equals(new Data("*s")) && !new Data("*s").equals(valueOf(new String[0]));
+    assert new Data("(s*v)").equals(new Data("(s*v)"));
+    new Data("E?").hashCode();
+    System.out.println("Content equality okay.");
+
+    // test abbreviated pretty-printing
+    d1 = valueOf(new double[][] {{1, 2, 3}, {4, 5, 6}});
+    assert d1.pretty().equals("[[1.0, 2.0, 3.0], [4.0, 5.0, 6.0]]");
+    assert d1.pretty(new PrettyLimits(2, 10, 100)).equals("[[1.0, 2.0, ...], [4.0, 5.0, ...]]");
+    assert d1.pretty(new PrettyLimits(0, 10, 100)).equals("[...]");
+    assert d1.pretty(new PrettyLimits(10, 10, 12)).equals("[[1.0, 2.0, ...");
+    assert d1.pretty(new PrettyLimits(10, 0, 100)).equals("...");
+    d2 = new Data("(s(i*w)Ew)");
+    d2.setString("abcdefgh", 0).get(1).setInt(5, 0).setArraySize(3, 1);
+    d2.get(2).setError(3, "oops");
+    for (int j = 0; j < 3; j++) {
+      d2.setWord(0, 1, 1, j);
+    }
+    assert d2.pretty().equals("(\"abcdefgh\", (5, [0, 0, 0]), Error(3, oops))");
+    assert d2.pretty(new PrettyLimits(10, 1, 100)).equals("(\"abcdefgh\", ..., Error(3, oops))");
+    assert d2.pretty(new PrettyLimits(10, 10, 5)).equals("(\"abc...");
+    d3 = valueOf(new double[1000000]);
+    assert d3.pretty(new PrettyLimits(3, 10, 1000)).equals("[0.0, 0.0, 0.0, ...]");
+    assert d3.pretty(new PrettyLimits(1000000, 10, 20)).length() == 23;
+    // lazy and streamed data are printed without being decoded
+    PrettyLimits[] limitSets = {
+      PrettyLimits.NONE, new PrettyLimits(2, 10, 1000), new PrettyLimits(0, 10, 1000),
+      new PrettyLimits(3, 1, 1000), new PrettyLimits(10, 10, 25)
+    };
+    for (count = 0; count < 1000; count++) {
+      d1 = Hydrant.getRandomData();
+      flat = d1.toBytes();
+      d2 = fromBytesLazy(flat, 0, flat.length, d1.getType());
+      for (PrettyLimits limits : limitSets) {
+        assert d2.pretty(limits).equals(d1.pretty(limits));
+      }
+      assert !d2.isDecoded();
+    }
+    flat = valueOf(new double[1000000]).toBytes();
+    d1 = fromBytesLazy(flat, 0, flat.length, Type.fromTag("*v"));
+    assert d1.pretty(new PrettyLimits(3, 5, 100)).equals("[0.0, 0.0, 0.0, ...]");
+    assert !d1.isDecoded();
+    final int[] produced = {0};
+    d1 = streamList("*2(wv)", new ListWriter.Source() {
+      public void writeElements(ListWriter writer) throws IOException {
+        for (int j = 0; j < 1000; j++) {
+          for (int k = 0; k < 1000; k++) {
+            writer.writeWord(j).writeValue(k);
+            produced[0]++;
+          }
+        }
+      }
+    }, 1000, 1000);
+    assert d1.pretty(new PrettyLimits(2, 5, 1000)).equals(
+        "[[(0, 0.0), (0, 1.0), ...], [(1, 0.0), (1, 1.0), ...], ...]");
+    assert d1.isStreamed() && produced[0] < 2000;
+    assert d1.pretty(new PrettyLimits(3, 0, 1000)).equals("...");
+    assert d1.pretty(new PrettyLimits(0, 5, 1000)).equals("[...]");
+    assert d1.isStreamed();
+    System.out.println("Pretty printing okay.");
+
+    // test streamed lists
+    final int nRows = 100000;
+    ListWriter.Source rowSource = new ListWriter.Source() {
+      public void writeElements(ListWriter writer) throws IOException {
+        for (int i = 0; i < nRows; i++) {
+          writer.writeWord(i).writeValue(i / 2.0);
+        }
+      }
+    };
+    long[] rowIds = new long[nRows];
+    double[] rowVals = new double[nRows];
+    for (int k = 0; k < nRows; k++) {
+      rowIds[k] = k;
+      rowVals[k] = k / 2.0;
+    }
+    byte[] expected = columnsOf(rowIds, rowVals).toBytes();
+    d1 = streamList("*(wv)", rowSource, nRows);
+    assert d1.isStreamed() && !d1.isDecoded();
+    assert d1.flattenedSize() == expected.length;
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    d1.writeTo(os);
+    assert Arrays.equals(expected, os.toByteArray());
+    assert Arrays.equals(expected, d1.toBytes());
+    assert d1.isStreamed();
+    assert d1.get(nRows - 1, 1).getValue() == (nRows - 1) / 2.0;
+    assert !d1.isStreamed() && Arrays.equals(expected, d1.toBytes());
+    d1 = streamList("*2v", new ListWriter.Source() {
+      public void writeElements(ListWriter writer) throws IOException {
+        writer.writeValues(1, 2, 3).writeValues(4, 5, 6);
+      }
+    }, 2, 3);
+    assert Arrays.deepEquals(new double[][] {{1, 2, 3}, {4, 5, 6}}, d1.getValueArray2D());
+    d1 = streamList("*v", new ListWriter.Source() {
+      public void writeElements(ListWriter writer) throws IOException {
+        writer.writeValues(1, 2);
+      }
+    }, 3);
+    try {
+      d1.toBytes();
+      assert false;
+    } catch (IllegalStateException e) {
+      // too few elements
+    }
+    try {
+      new ListWriter(os, Type.fromTag("*(wv)"), 1).writeValue(1.0);
+      assert false;
+    } catch (RuntimeException e) {
+      // fields must be written in order
+    }
+    try {
+      streamList("*s", rowSource, 1);
+      assert false;
+    } catch (RuntimeException e) {
+      // elements must be fixed-width
+    }
+    // elements wider than the writer's buffer
+    StringBuilder wideTag = new StringBuilder("(");
+    for (int j = 0; j < 1100; j++) {
+      wideTag.append('v');
+    }
+    final Data wide = new Data(wideTag.append(")").toString());
+    for (int j = 0; j < 1100; j++) {
+      wide.setValue(j, j);
+    }
+    d1 = streamList(org.labrad.types.List.of(wide.getType()), new ListWriter.Source() {
+      public void writeElements(ListWriter writer) throws IOException {
+        writer.writeValue(-1);
+        for (int j = 1; j < 1100; j++) {
+          writer.writeValue(j);
+        }
+        writer.write(wide).write(wide);
+      }
+    }, 3);
+    d2 = fromBytes(d1.toBytes(), d1.getType());
+    assert d2.get(2, 1099).getValue() == 1099 && d2.get(0, 0).getValue() == -1;
+    assert d2.get(1).equals(wide) && d2.get(2).equals(wide);
+    System.out.println("Streamed lists okay.");
+    try {
+      Data.valueOf(new int[][] {{1, 2}, {3}});
+      assert false : "ragged array should be rejected";
+    } catch (RuntimeException e) {
+      // expected
+    }
+    System.out.println("Array constructors okay.");
+
+    // test cursor navigation
+    d1 = new Data("*(s v[Hz] *v)");
+    d1.setArraySize(5);
+    for (count = 0; count < 5; count++) {
+      d1.setString("name" + count, count, 0);
+      d1.setValue(count * 1.5, count, 1);
+      d1.setArraySize(count, count, 2);
+      for (int m = 0; m < count; m++) {
+        d1.setValue(count + m * 0.25, count, 2, m);
+      }
+    }
+    DataCursor cursor = d1.cursor();
+    for (count = 0; count < cursor.getArraySize(); count++) {
+      cursor.down(count).down(0);
+      assert cursor.getString().equals("name" + count);
+      cursor.up().down(1);
+      assert cursor.getValue() == count * 1.5;
+      cursor.up().down(2);
+      for (int m = 0; m < cursor.getArraySize(); m++) {
+        cursor.down(m);
+        assert cursor.getValue() == count + m * 0.25;
+        cursor.setValue(-1.0).up();
+      }
+      cursor.up().up();
+      assert cursor.getLevel() == 0;
+    }
+    assert d1.get(4, 2, 3).getValue() == -1.0;
+    d1 = new Data("*2i");
+    d1.setArrayShape(3, 4);
+    cursor = d1.cursor();
+    cursor.down(2, 1).setInt(42).reset().down(new int[] {1, 3}).setInt(7);
+    assert d1.get(2, 1).getInt() == 42;
+    assert d1.get(1, 3).getInt() == 7;
+    System.out.println("Cursor okay.");
+
+    // test flat and strided list indexing
+    d1 = Data.valueOf(vals3D);
+    for (int m = 0; m < 3; m++) {
+      for (int n = 0; n < 4; n++) {
+        for (int p = 0; p < 5; p++) {
+          assert d1.get(m, n, p).getValue() == vals3D[m][n][p];
+          assert d1.getValueFlat((m * 4 + n) * 5 + p) == vals3D[m][n][p];
+        }
+      }
+    }
+    d1.setArrayShape(2, 2, 2);
+    d1.setValue(3.0, 1, 1, 1);
+    assert d1.getFlat(7).getValue() == 3.0;
+    try {
+      d1.get(0, 2, 0);
+      assert false : "out of bounds index should be rejected";
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+    System.out.println("Strided indexing okay.");
+
+    // time bulk array getters against per-element access
+    int nVals = 1000000;
+    d1 = new Data("*v");
+    d1.setArraySize(nVals);
+    for (count = 0; count < nVals; count++) {
+      d1.setValue(rand.nextGaussian(), count);
+    }
+    long start = System.nanoTime();
+    double[] slow = new double[nVals];
+    for (count = 0; count < nVals; count++) {
+      slow[count] = d1.get(count).getValue();
+    }
+    long slowTime = System.nanoTime() - start;
+    start = System.nanoTime();
+    double[] fast = d1.getValueArray();
+    long fastTime = System.nanoTime() - start;
+    assert Arrays.equals(slow, fast);
+    System.out.println(String.format("getValueArray (%d): %.1f ms per-element, %.1f ms bulk (%.0fx)",
+        nVals, slowTime / 1e6, fastTime / 1e6, (double) slowTime / fastTime));
+
     System.out.println("done.");
   }
 }
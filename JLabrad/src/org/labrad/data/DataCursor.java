@@ -0,0 +1,382 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ *
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.labrad.errors.NonIndexableTypeException;
+import org.labrad.types.Type;
+
+/**
+ * A mutable position within a Data object.  The cursor can be moved down
+ * into list elements and cluster members and back up again, and can read
+ * or write primitive values at its current position.  Unlike Data.get(),
+ * which creates a new view object for every access, moving a cursor does
+ * not allocate, so it can be used to walk large nested structures cheaply.
+ *
+ * A cursor holds a stack of positions, one for each level it has moved
+ * down into.  For example, to read the values out of a *(s v[Hz] *v):
+ * <pre>
+ * DataCursor c = data.cursor();
+ * for (int i = 0; i < c.getArraySize(); i++) {
+ *   c.down(i);
+ *   c.down(1); double freq = c.getValue(); c.up();
+ *   c.up();
+ * }
+ * </pre>
+ */
+public class DataCursor {
+  private final Heap heap;
+
+  // stack of positions; level 0 is the root of the data object
+  private Type[] types = new Type[8];
+  private byte[][] bufs = new byte[8][];
+  private ByteBuffer[] directs = new ByteBuffer[8]; // for list bodies stored off the heap
+  private int[] offsets = new int[8];
+  private int level = 0;
+
+  DataCursor(Type type, byte[] data, ByteBuffer direct, int ofs, Heap heap) {
+    this.heap = heap;
+    types[0] = type;
+    bufs[0] = data;
+    directs[0] = direct;
+    offsets[0] = ofs;
+  }
+
+  /**
+   * Get the type of the data at the current position.
+   * @return
+   */
+  public Type getType() { return types[level]; }
+
+  /**
+   * Get the number of levels the cursor has moved down from the root.
+   * @return
+   */
+  public int getLevel() { return level; }
+
+  /**
+   * Get a Data view of the current position.  Note that this allocates
+   * a new view object, and that modifications to the view will be
+   * reflected in the original data.
+   * @return
+   */
+  public Data getData() {
+    return new Data(types[level], bufs[level], directs[level], offsets[level], heap);
+  }
+
+
+  // movement
+
+  /**
+   * Move down into an element of a one-dimensional list, or a member of a cluster.
+   * @param index
+   * @return this cursor, for chaining
+   */
+  public DataCursor down(int index) {
+    Type type = types[level];
+    switch (type.getCode()) {
+      case LIST:
+        if (type.getDepth() != 1) {
+          throw new RuntimeException("Not enough indices for array.");
+        }
+        int size = Bytes.getInt(bufs[level], offsets[level]);
+        checkIndex(index, size);
+        return pushListElement(type, index);
+
+      case CLUSTER:
+        checkIndex(index, type.size());
+        return push(type.getSubtype(index), bufs[level], directs[level],
+            offsets[level] + type.getOffset(index));
+
+      default:
+        throw new NonIndexableTypeException(type);
+    }
+  }
+
+  /**
+   * Move down into an element of a two-dimensional list.
+   * @param i
+   * @param j
+   * @return this cursor, for chaining
+   */
+  public DataCursor down(int i, int j) {
+    Type type = checkList(2);
+    byte[] buf = bufs[level];
+    int ofs = offsets[level];
+    int rows = Bytes.getInt(buf, ofs);
+    int cols = Bytes.getInt(buf, ofs + 4);
+    checkIndex(i, rows);
+    checkIndex(j, cols);
+    return pushListElement(type, i * cols + j);
+  }
+
+  /**
+   * Move down into an element of a list of any depth.  The number
+   * of indices must match the depth of the list.
+   * @param indices
+   * @return this cursor, for chaining
+   */
+  public DataCursor down(int[] indices) {
+    Type type = checkList(indices.length);
+    byte[] buf = bufs[level];
+    int ofs = offsets[level];
+    int index = 0;
+    for (int dim = 0; dim < indices.length; dim++) {
+      int size = Bytes.getInt(buf, ofs + 4 * dim);
+      checkIndex(indices[dim], size);
+      index = index * size + indices[dim];
+    }
+    return pushListElement(type, index);
+  }
+
+  /**
+   * Move up one level, back to the list or cluster containing the current position.
+   * @return this cursor, for chaining
+   */
+  public DataCursor up() {
+    if (level == 0) {
+      throw new RuntimeException("Cursor is already at the root.");
+    }
+    types[level] = null;
+    bufs[level] = null;
+    directs[level] = null;
+    level--;
+    return this;
+  }
+
+  /**
+   * Move back up to the root of the data object.
+   * @return this cursor, for chaining
+   */
+  public DataCursor reset() {
+    while (level > 0) {
+      up();
+    }
+    return this;
+  }
+
+  private Type checkList(int depth) {
+    Type type = types[level];
+    if (type.getCode() != Type.Code.LIST) {
+      throw new NonIndexableTypeException(type);
+    }
+    if (type.getDepth() != depth) {
+      throw new RuntimeException("Array depth mismatch!");
+    }
+    return type;
+  }
+
+  private static void checkIndex(int index, int size) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Index " + index + " out of bounds for size " + size + ".");
+    }
+  }
+
+  private DataCursor pushListElement(Type type, int index) {
+    Type elementType = type.getSubtype(0);
+    int h = Bytes.getInt(bufs[level], offsets[level] + 4 * type.getDepth());
+    return push(elementType, heap.buf(h), heap.direct(h),
+        heap.offset(h) + elementType.dataWidth() * index);
+  }
+
+  private DataCursor push(Type type, byte[] buf, ByteBuffer direct, int ofs) {
+    level++;
+    if (level == types.length) {
+      types = Arrays.copyOf(types, 2 * level);
+      bufs = Arrays.copyOf(bufs, 2 * level);
+      directs = Arrays.copyOf(directs, 2 * level);
+      offsets = Arrays.copyOf(offsets, 2 * level);
+    }
+    types[level] = type;
+    bufs[level] = buf;
+    directs[level] = direct;
+    offsets[level] = ofs;
+    return this;
+  }
+
+  /**
+   * Checks that the data can be modified.
+   */
+  private void checkWritable() {
+    if (heap.isReadOnly()) {
+      throw new UnsupportedOperationException("Data is read-only.");
+    }
+  }
+
+  /**
+   * Checks that the type at the current position has the specified code.
+   * @param code
+   */
+  private void check(Type.Code code) {
+    heap.checkLive();
+    Type type = types[level];
+    if (type.getCode() != code) {
+      throw new RuntimeException(
+          "Type mismatch: expecting " + code +
+          " but found " + type.getCode() + " instead.");
+    }
+  }
+
+
+  // getters
+  public boolean getBool() {
+    check(Type.Code.BOOL);
+    return Bytes.getBool(bufs[level], directs[level], offsets[level]);
+  }
+
+  public int getInt() {
+    check(Type.Code.INT);
+    return Bytes.getInt(bufs[level], directs[level], offsets[level]);
+  }
+
+  public long getWord() {
+    check(Type.Code.WORD);
+    return Bytes.getWord(bufs[level], directs[level], offsets[level]);
+  }
+
+  public double getValue() {
+    check(Type.Code.VALUE);
+    return Bytes.getDouble(bufs[level], directs[level], offsets[level]);
+  }
+
+  public double getReal() {
+    check(Type.Code.COMPLEX);
+    return Bytes.getDouble(bufs[level], directs[level], offsets[level]);
+  }
+
+  public double getImag() {
+    check(Type.Code.COMPLEX);
+    return Bytes.getDouble(bufs[level], directs[level], offsets[level] + 8);
+  }
+
+  /**
+   * Get the bytes of a string at the current position.  Note that if the
+   * string was set from a byte array, this returns that array itself rather
+   * than a copy.
+   * @return
+   */
+  public byte[] getBytes() {
+    check(Type.Code.STR);
+    return heap.get(Bytes.getInt(bufs[level], offsets[level]));
+  }
+
+  public String getString() {
+    check(Type.Code.STR);
+    int h = Bytes.getInt(bufs[level], offsets[level]);
+    try {
+      return new String(heap.buf(h), heap.offset(h), heap.length(h), Data.STRING_ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Unsupported string encoding.");
+    }
+  }
+
+  public String getUnits() {
+    return types[level].getUnits();
+  }
+
+  public int getArraySize() {
+    check(Type.Code.LIST);
+    if (types[level].getDepth() > 1) {
+      throw new RuntimeException("Can't get size of multi-dimensional array.  Use getArrayShape.");
+    }
+    return Bytes.getInt(bufs[level], offsets[level]);
+  }
+
+  /**
+   * Get the length of a list at the current position along the specified dimension.
+   * @param dim
+   * @return
+   */
+  public int getArrayShape(int dim) {
+    check(Type.Code.LIST);
+    checkIndex(dim, types[level].getDepth());
+    return Bytes.getInt(bufs[level], offsets[level] + 4 * dim);
+  }
+
+  public int getClusterSize() {
+    check(Type.Code.CLUSTER);
+    return types[level].size();
+  }
+
+
+  // setters
+  public DataCursor setBool(boolean data) {
+    check(Type.Code.BOOL);
+    checkWritable();
+    Bytes.setBool(bufs[level], directs[level], offsets[level], data);
+    return this;
+  }
+
+  public DataCursor setInt(int data) {
+    check(Type.Code.INT);
+    checkWritable();
+    Bytes.setInt(bufs[level], directs[level], offsets[level], data);
+    return this;
+  }
+
+  public DataCursor setWord(long data) {
+    check(Type.Code.WORD);
+    checkWritable();
+    Bytes.setWord(bufs[level], directs[level], offsets[level], data);
+    return this;
+  }
+
+  public DataCursor setValue(double data) {
+    check(Type.Code.VALUE);
+    checkWritable();
+    Bytes.setDouble(bufs[level], directs[level], offsets[level], data);
+    return this;
+  }
+
+  public DataCursor setComplex(double re, double im) {
+    check(Type.Code.COMPLEX);
+    checkWritable();
+    Bytes.setDouble(bufs[level], directs[level], offsets[level], re);
+    Bytes.setDouble(bufs[level], directs[level], offsets[level] + 8, im);
+    return this;
+  }
+
+  public DataCursor setBytes(byte[] data) {
+    check(Type.Code.STR);
+    checkWritable();
+    int heapLocation = Bytes.getInt(bufs[level], offsets[level]);
+    if (heapLocation == -1) {
+      // not yet set in the heap
+      Bytes.setInt(bufs[level], offsets[level], heap.size());
+      heap.add(data);
+    } else {
+      // already set in the heap, reuse old spot
+      heap.set(heapLocation, data);
+    }
+    return this;
+  }
+
+  public DataCursor setString(String data) {
+    try {
+      return setBytes(data.getBytes(Data.STRING_ENCODING));
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Unsupported string encoding.");
+    }
+  }
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ *
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.labrad.types.Type;
+
+/**
+ * Pull parser for flattened LabRAD data.  Rather than unflattening the
+ * whole structure into a Data object, the parser steps through it one
+ * event at a time: the start and end of each list, cluster and error, and
+ * each basic value in between.  Nothing is copied out of the buffer unless
+ * asked for, so very large payloads can be scanned in a single pass using
+ * a fixed amount of memory.
+ *
+ * For example, to sum the second column of a *(wv):
+ * <pre>
+ * DataParser p = new DataParser(buf, "*(wv)");
+ * double sum = 0;
+ * while (p.next() != DataParser.Event.END_DATA) {
+ *   if (p.getEvent() == DataParser.Event.VALUE) sum += p.getValue();
+ * }
+ * </pre>
+ */
+public class DataParser {
+
+  public enum Event {
+    START_LIST, END_LIST,
+    START_CLUSTER, END_CLUSTER,
+    START_ERROR, END_ERROR,
+    EMPTY, BOOL, INT, WORD, VALUE, COMPLEX, TIME, STRING,
+    END_DATA
+  }
+
+  /**
+   * A list, cluster or error that is being parsed.  The children of an
+   * error are the elements of its (is...) cluster.
+   */
+  private static final class Frame {
+    Type type;
+    Type children;
+    int index;
+    int count;
+    int[] shape;
+  }
+
+  private final ByteBuffer bb;
+  private final Type rootType;
+  private final Frame[] stack;
+  private int level = 0;
+  private int pos;
+  private boolean started = false;
+
+  private Event event;
+  private Type type;
+  private int valuePos;
+  private int valueLen;
+  private int[] shape;
+
+  /**
+   * Parse flattened data of the given type from a ByteBuffer, starting at
+   * its current position.  The buffer's position is not changed.
+   * @param buf
+   * @param type
+   */
+  public DataParser(ByteBuffer buf, Type type) {
+    this.bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+    this.pos = buf.position();
+    this.rootType = type;
+    this.stack = new Frame[maxLevels(type)];
+    for (int i = 0; i < stack.length; i++) {
+      stack[i] = new Frame();
+    }
+  }
+
+  public DataParser(ByteBuffer buf, String tag) {
+    this(buf, Type.fromTag(tag));
+  }
+
+  public DataParser(byte[] buf, Type type) {
+    this(ByteBuffer.wrap(buf), type);
+  }
+
+  public DataParser(byte[] buf, String tag) {
+    this(ByteBuffer.wrap(buf), Type.fromTag(tag));
+  }
+
+  /**
+   * Get the maximum nesting of lists, clusters and errors in a type.
+   */
+  private static int maxLevels(Type type) {
+    switch (type.getCode()) {
+      case LIST:
+        return 1 + maxLevels(type.getSubtype(0));
+      case CLUSTER:
+        int max = 0;
+        for (int i = 0; i < type.size(); i++) {
+          max = Math.max(max, maxLevels(type.getSubtype(i)));
+        }
+        return 1 + max;
+      case ERROR:
+        return 1 + maxLevels(errorType(type));
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Get the cluster type in which an error is flattened.
+   */
+  private static Type errorType(Type type) {
+    return Type.fromTag("is" + type.getSubtype(0).toString());
+  }
+
+  /**
+   * Indicates whether there are more events, that is, whether the end of
+   * the data has not yet been reached.
+   * @return
+   */
+  public boolean hasNext() {
+    return event != Event.END_DATA;
+  }
+
+  /**
+   * Advance to the next event.
+   * @return the new event
+   * @throws NoSuchElementException if the end of the data was already reached
+   */
+  public Event next() {
+    if (event == Event.END_DATA) {
+      throw new NoSuchElementException("No more data.");
+    }
+    if (!started) {
+      started = true;
+      return begin(rootType);
+    }
+    if (level == 0) {
+      type = null;
+      return event = Event.END_DATA;
+    }
+    Frame frame = stack[level - 1];
+    if (frame.index < frame.count) {
+      Type child = frame.type.getCode() == Type.Code.LIST
+          ? frame.children : frame.children.getSubtype(frame.index);
+      frame.index++;
+      return begin(child);
+    }
+    level--;
+    type = frame.type;
+    switch (type.getCode()) {
+      case LIST: return event = Event.END_LIST;
+      case CLUSTER: return event = Event.END_CLUSTER;
+      default: return event = Event.END_ERROR;
+    }
+  }
+
+  /**
+   * Start parsing a piece of data of the given type at the current position.
+   */
+  private Event begin(Type t) {
+    type = t;
+    valuePos = pos;
+    switch (t.getCode()) {
+      case EMPTY: return event = Event.EMPTY;
+      case BOOL: pos += 1; return event = Event.BOOL;
+      case INT: pos += 4; return event = Event.INT;
+      case WORD: pos += 4; return event = Event.WORD;
+      case VALUE: pos += 8; return event = Event.VALUE;
+      case COMPLEX: pos += 16; return event = Event.COMPLEX;
+      case TIME: pos += 16; return event = Event.TIME;
+
+      case STR:
+        valueLen = bb.getInt(pos);
+        valuePos = pos + 4;
+        pos = valuePos + valueLen;
+        if (valueLen < 0 || pos > bb.limit()) {
+          throw new RuntimeException("String length " + valueLen + " is out of range.");
+        }
+        return event = Event.STRING;
+
+      case LIST:
+        int depth = t.getDepth();
+        Frame frame = push(t, t.getSubtype(0));
+        if (frame.shape == null || frame.shape.length != depth) {
+          frame.shape = new int[depth];
+        }
+        long size = 1;
+        for (int i = 0; i < depth; i++) {
+          frame.shape[i] = bb.getInt(pos);
+          size *= frame.shape[i];
+          pos += 4;
+        }
+        if (size < 0 || size > Integer.MAX_VALUE) {
+          throw new RuntimeException("List size " + size + " is out of range.");
+        }
+        frame.count = (int) size;
+        shape = frame.shape;
+        return event = Event.START_LIST;
+
+      case CLUSTER:
+        push(t, t).count = t.size();
+        return event = Event.START_CLUSTER;
+
+      case ERROR:
+        Type children = errorType(t);
+        push(t, children).count = children.size();
+        return event = Event.START_ERROR;
+
+      default:
+        throw new RuntimeException("Unknown type.");
+    }
+  }
+
+  private Frame push(Type t, Type children) {
+    Frame frame = stack[level++];
+    frame.type = t;
+    frame.children = children;
+    frame.index = 0;
+    return frame;
+  }
+
+  /**
+   * Skip the remaining contents of the list, cluster or error that is
+   * currently being parsed, so that the next event is its end.  Lists of
+   * fixed-width elements are skipped without looking at each element.
+   */
+  public void skip() {
+    if (level == 0) {
+      throw new IllegalStateException("Not inside a list, cluster or error.");
+    }
+    Frame frame = stack[level - 1];
+    if (frame.type.getCode() == Type.Code.LIST) {
+      pos = skip(frame.children, pos, frame.count - frame.index);
+    } else {
+      for (int i = frame.index; i < frame.count; i++) {
+        pos = skip(frame.children.getSubtype(i), pos, 1);
+      }
+    }
+    frame.index = frame.count;
+  }
+
+  /**
+   * Skip the next n elements of the list that is currently being parsed,
+   * so that the next event is the start of the element after them, or the
+   * end of the list.  Elements that are fixed-width are skipped without
+   * looking at them.
+   * @param n
+   */
+  public void skip(int n) {
+    Frame frame = (level == 0) ? null : stack[level - 1];
+    if (frame == null || frame.type.getCode() != Type.Code.LIST) {
+      throw new IllegalStateException("Not inside a list.");
+    }
+    if (n < 0 || n > frame.count - frame.index) {
+      throw new IndexOutOfBoundsException("Can't skip " + n + " of the " +
+          (frame.count - frame.index) + " remaining elements.");
+    }
+    pos = skip(frame.children, pos, n);
+    frame.index += n;
+  }
+
+  /**
+   * Find the end of n consecutive flattened pieces of data of the given type.
+   */
+  private int skip(Type t, int pos, int n) {
+    if (t.isFixedWidth()) {
+      return pos + n * t.dataWidth();
+    }
+    for (int k = 0; k < n; k++) {
+      switch (t.getCode()) {
+        case STR:
+          pos += 4 + bb.getInt(pos);
+          break;
+
+        case LIST:
+          int size = 1;
+          for (int i = 0; i < t.getDepth(); i++) {
+            size *= bb.getInt(pos);
+            pos += 4;
+          }
+          pos = skip(t.getSubtype(0), pos, size);
+          break;
+
+        case CLUSTER:
+          for (int i = 0; i < t.size(); i++) {
+            pos = skip(t.getSubtype(i), pos, 1);
+          }
+          break;
+
+        case ERROR:
+          pos = skip(errorType(t), pos, 1);
+          break;
+
+        default:
+          throw new RuntimeException("Unknown type.");
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * Get the current event.
+   * @return
+   */
+  public Event getEvent() {
+    return event;
+  }
+
+  /**
+   * Get the type of the data at the current event.
+   * @return
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Get the nesting level of the current event, which is zero for the
+   * top-level data, one for its elements, and so on.  For start and end
+   * events, this is the level of the list, cluster or error itself.
+   * @return
+   */
+  public int getLevel() {
+    switch (event) {
+      case START_LIST: case START_CLUSTER: case START_ERROR:
+        return level - 1;
+      default:
+        return level;
+    }
+  }
+
+  /**
+   * Get the index of the current event within its enclosing list, cluster or
+   * error, or -1 at the top level.  For end events, this is the index of
+   * the list, cluster or error that has just ended.
+   * @return
+   */
+  public int getIndex() {
+    int parent = getLevel();
+    return parent == 0 ? -1 : stack[parent - 1].index - 1;
+  }
+
+  /**
+   * Get the position in the buffer just past the data parsed so far.
+   * @return
+   */
+  public int getPosition() {
+    return pos;
+  }
+
+  /**
+   * Get the shape of the list at a START_LIST event.
+   * @return
+   */
+  public int[] getShape() {
+    check(Event.START_LIST);
+    return shape.clone();
+  }
+
+  /**
+   * Get the total number of elements in the list at a START_LIST event.
+   * @return
+   */
+  public int getListSize() {
+    check(Event.START_LIST);
+    return stack[level - 1].count;
+  }
+
+  public boolean getBool() {
+    check(Event.BOOL);
+    return bb.get(valuePos) != 0;
+  }
+
+  public int getInt() {
+    check(Event.INT);
+    return bb.getInt(valuePos);
+  }
+
+  public long getWord() {
+    check(Event.WORD);
+    return bb.getInt(valuePos) & 0xffffffffL;
+  }
+
+  public double getValue() {
+    check(Event.VALUE);
+    return bb.getDouble(valuePos);
+  }
+
+  public double getReal() {
+    check(Event.COMPLEX);
+    return bb.getDouble(valuePos);
+  }
+
+  public double getImag() {
+    check(Event.COMPLEX);
+    return bb.getDouble(valuePos + 8);
+  }
+
+  public Complex getComplex() {
+    return new Complex(getReal(), getImag());
+  }
+
+  public Date getTime() {
+    check(Event.TIME);
+    return Data.getTime(null, bb, valuePos);
+  }
+
+  /**
+   * Get the length in bytes of the string at a STRING event.
+   * @return
+   */
+  public int getStringLength() {
+    check(Event.STRING);
+    return valueLen;
+  }
+
+  /**
+   * Get a read-only view of the bytes of the string at a STRING event,
+   * without copying them.
+   * @return
+   */
+  public ByteBuffer getStringBuffer() {
+    check(Event.STRING);
+    return slice(valuePos, valueLen).asReadOnlyBuffer();
+  }
+
+  /**
+   * Get a copy of the bytes of the string at a STRING event.
+   * @return
+   */
+  public byte[] getBytes() {
+    byte[] bytes = new byte[getStringLength()];
+    slice(valuePos, valueLen).get(bytes);
+    return bytes;
+  }
+
+  public String getString() {
+    try {
+      return new String(getBytes(), Data.STRING_ENCODING);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException("Unsupported string encoding.");
+    }
+  }
+
+  private ByteBuffer slice(int ofs, int len) {
+    return Data.slice(bb, ofs, len);
+  }
+
+  private void check(Event expected) {
+    if (event != expected) {
+      throw new IllegalStateException(
+          "Event mismatch: expecting " + expected + " but found " + event + " instead.");
+    }
+  }
+
+  /**
+   * Check that parsing the given data produces events that match its
+   * contents, leaving the parser just past it.
+   */
+  private static void verify(Data data, DataParser p) {
+    Event e = p.next();
+    assert p.getType() == data.getType();
+    switch (data.getType().getCode()) {
+      case EMPTY: assert e == Event.EMPTY; break;
+      case BOOL: assert p.getBool() == data.getBool(); break;
+      case INT: assert p.getInt() == data.getInt(); break;
+      case WORD: assert p.getWord() == data.getWord(); break;
+      case VALUE: assert Double.compare(p.getValue(), data.getValue()) == 0; break;
+      case COMPLEX: assert p.getComplex().equals(data.getComplex()); break;
+      case TIME: assert p.getTime().equals(data.getTime()); break;
+      case STR: assert Arrays.equals(p.getBytes(), data.getBytes()); break;
+
+      case LIST:
+        assert e == Event.START_LIST;
+        assert Arrays.equals(p.getShape(), data.getArrayShape());
+        int size = p.getListSize();
+        int[] shape = data.getArrayShape();
+        int[] indices = new int[shape.length];
+        for (int i = 0; i < size; i++) {
+          int rem = i;
+          for (int k = shape.length - 1; k >= 0; k--) {
+            indices[k] = rem % shape[k];
+            rem /= shape[k];
+          }
+          verify(data.get(indices), p);
+        }
+        assert p.next() == Event.END_LIST;
+        break;
+
+      case CLUSTER:
+        assert e == Event.START_CLUSTER;
+        for (int i = 0; i < data.getClusterSize(); i++) {
+          verify(data.get(i), p);
+          assert p.getIndex() == i;
+        }
+        assert p.next() == Event.END_CLUSTER;
+        break;
+
+      default:
+        throw new RuntimeException("Unexpected type.");
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    // check events against the contents of random data
+    Hydrant.random = new Random(1);
+    for (int i = 0; i < 1000; i++) {
+      Data d = Hydrant.getRandomData();
+      byte[] flat = d.toBytes();
+      DataParser p = new DataParser(flat, d.getType());
+      verify(d, p);
+      assert p.next() == Event.END_DATA && !p.hasNext();
+      assert p.getPosition() == flat.length;
+
+      // skipping the top-level structure lands in the same place
+      p = new DataParser(flat, d.getType());
+      Event e = p.next();
+      if (e == Event.START_LIST || e == Event.START_CLUSTER) {
+        p.skip();
+        assert p.next() == (e == Event.START_LIST ? Event.END_LIST : Event.END_CLUSTER);
+      }
+      assert p.next() == Event.END_DATA && p.getPosition() == flat.length;
+    }
+
+    // sum a column and pick out a field
+    long[] ids = new long[1000];
+    double[] vals = new double[1000];
+    double expected = 0;
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = i;
+      vals[i] = i * 0.25;
+      expected += vals[i];
+    }
+    Data d = Data.columnsOf(ids, vals);
+    DataParser p = new DataParser(d.toBytes(), d.getType());
+    double sum = 0;
+    while (p.next() != Event.END_DATA) {
+      if (p.getEvent() == Event.VALUE) sum += p.getValue();
+    }
+    assert sum == expected;
+
+    d = new Data("(s*v(is)Ew)");
+    d.setString("name", 0).setArraySize(3, 1);
+    d.get(2).setInt(5, 0).setString("label", 1);
+    d.get(3).setError(7, "oops");
+    p = new DataParser(d.toBytes(), d.getType());
+    p.next();
+    assert p.next() == Event.STRING && p.getString().equals("name");
+    assert p.next() == Event.START_LIST;
+    p.skip();
+    assert p.next() == Event.END_LIST && p.getIndex() == 1;
+    assert p.next() == Event.START_CLUSTER && p.getLevel() == 1;
+    assert p.next() == Event.INT && p.getInt() == 5 && p.getLevel() == 2;
+    assert p.next() == Event.STRING && p.getStringBuffer().remaining() == 5;
+    assert p.next() == Event.END_CLUSTER;
+    assert p.next() == Event.START_ERROR;
+    assert p.next() == Event.INT && p.getInt() == 7;
+    assert p.next() == Event.STRING && p.getString().equals("oops");
+    assert p.next() == Event.WORD;
+    assert p.next() == Event.END_ERROR;
+    assert p.next() == Event.END_CLUSTER;
+    assert p.next() == Event.END_DATA;
+    System.out.println("Parser okay.");
+  }
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ *
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.labrad.types.Type;
+
+/**
+ * Storage for the variable-length pieces of a Data object, namely strings,
+ * list bodies and error messages.  Each piece is identified by an index
+ * which is stored in the fixed-width part of the data, and occupies the
+ * region of buf(index) that starts at offset(index) and has length(index).
+ *
+ * Pieces that come from outside, such as arrays passed to setBytes, are
+ * stored as whole arrays.  Pieces created while unflattening are instead
+ * carved out of a slab that is shared by the whole data tree, so that
+ * unflattening a *s with many elements takes a handful of allocations
+ * rather than one per element.  When the slab fills up we start a new
+ * chunk instead of copying, so regions that were handed out stay valid.
+ *
+ * Replacing a string or list body leaves the old piece, and everything it
+ * pointed to, behind in the heap.  A heap knows the root of the data tree
+ * it belongs to, so it can walk the tree to find which pieces are still in
+ * use and drop the rest; see compact.
+ *
+ * List bodies of fixed-width elements that are at least as large as the
+ * direct threshold are stored off the Java heap in direct buffers, for
+ * which buf(index) is null and direct(index) gives the buffer instead.
+ * Such buffers come from a pool, and go back into it when the heap is
+ * released, so that large arrays can be reused without involving the
+ * garbage collector.
+ *
+ * A heap may also belong to a view of part of a list, such as a row, in
+ * which case the list body is a region of a piece owned by the parent heap
+ * that the view was taken from.  Such a heap does not own its storage, so
+ * it is never released itself, but it can no longer be used once the parent
+ * has been released.
+ */
+final class Heap implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Heap for fixed-width data, which never needs to store anything. */
+  static final Heap EMPTY = new Heap();
+
+  private static final byte[] NO_BYTES = new byte[0];
+
+  // sizes of slab chunks grow geometrically between these limits
+  private static final int MIN_CHUNK = 1024;
+  private static final int MAX_CHUNK = 1 << 20;
+
+  // pieces at least this large get an array of their own
+  private static final int LARGE = MAX_CHUNK / 4;
+
+  // when a piece is replaced, compact automatically if the heap is at least
+  // this large and has doubled in size since it was last compacted
+  private static final long AUTO_COMPACT = 1 << 20;
+
+  // off-heap buffers are allocated in multiples of this size,
+  // and at most this many bytes of them are kept in the pool
+  private static final int POOL_GRANULE = 1 << 16;
+  private static final long POOL_LIMIT = 1L << 30;
+
+  private static volatile int directThreshold = Integer.MAX_VALUE;
+
+  private static final Map<Integer, ArrayDeque<ByteBuffer>> pool =
+      new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+  private static long pooledBytes = 0;
+
+  private final Type rootType;
+  private final byte[] root;
+  private final Heap parent;
+
+  private byte[][] bufs = new byte[0][];
+  private ByteBuffer[] directs = new ByteBuffer[0];
+  private int[] offsets = new int[0];
+  private int[] lengths = new int[0];
+  private int size = 0;
+
+  private byte[] slab = null;
+  private int slabPos = 0;
+
+  private long totalBytes = 0; // total length of all pieces
+  private long liveBytes = 0;  // total length of all pieces after the last compaction
+  private boolean released = false;
+  private boolean readOnly = false;
+
+  private Heap() {
+    this(null, null);
+  }
+
+  /**
+   * Create a heap for the data tree of the given type whose fixed-width
+   * part is stored at the start of the given buffer.
+   * @param rootType
+   * @param root
+   */
+  Heap(Type rootType, byte[] root) {
+    this(rootType, root, null);
+  }
+
+  /**
+   * Create a heap for a view whose pieces may share storage with the
+   * given parent heap.  The new heap is read-only if the parent is.
+   * @param rootType
+   * @param root
+   * @param parent
+   */
+  Heap(Type rootType, byte[] root, Heap parent) {
+    this.rootType = rootType;
+    this.root = root;
+    this.parent = parent;
+    if (parent != null) {
+      this.readOnly = parent.isReadOnly();
+    }
+  }
+
+  /**
+   * Get the number of pieces stored in this heap.
+   * @return
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get the array holding the specified piece.  The piece itself
+   * starts at offset(index) within this array.  If the piece is
+   * stored off the Java heap, this returns null.
+   * @param index
+   * @return
+   */
+  byte[] buf(int index) {
+    checkIndex(index);
+    return bufs[index];
+  }
+
+  /**
+   * Get the direct buffer holding the specified piece, or null if
+   * the piece is stored in an array.
+   * @param index
+   * @return
+   */
+  ByteBuffer direct(int index) {
+    checkIndex(index);
+    return directs[index];
+  }
+
+  int offset(int index) {
+    checkIndex(index);
+    return offsets[index];
+  }
+
+  int length(int index) {
+    checkIndex(index);
+    return lengths[index];
+  }
+
+  /**
+   * Get the bytes of the specified piece.  If the piece was stored as a
+   * whole array, this returns that array itself; otherwise it returns
+   * a copy of the piece's region of the slab.
+   * @param index
+   * @return
+   */
+  byte[] get(int index) {
+    checkIndex(index);
+    byte[] buf = bufs[index];
+    int ofs = offsets[index];
+    int len = lengths[index];
+    if (ofs == 0 && len == buf.length) {
+      return buf;
+    }
+    return Arrays.copyOfRange(buf, ofs, ofs + len);
+  }
+
+  /**
+   * Add a new piece to the heap, stored as a whole array.
+   * @param buf
+   * @return the index of the new piece
+   */
+  int add(byte[] buf) {
+    return add(buf, null, 0, buf.length);
+  }
+
+  /**
+   * Add a new piece that is a region of an existing array, sharing
+   * its contents rather than copying them.
+   * @param buf
+   * @param ofs
+   * @param len
+   * @return the index of the new piece
+   */
+  int add(byte[] buf, int ofs, int len) {
+    return add(buf, null, ofs, len);
+  }
+
+  /**
+   * Add a new piece to the heap, stored in a direct buffer.
+   * @param buf
+   * @return the index of the new piece
+   */
+  int add(ByteBuffer buf) {
+    return add(null, buf, 0, buf.limit());
+  }
+
+  /**
+   * Replace the piece at the specified index with a whole array.
+   * @param index
+   * @param buf
+   */
+  void set(int index, byte[] buf) {
+    checkIndex(index);
+    replace(index, buf, null, buf.length);
+  }
+
+  /**
+   * Replace the piece at the specified index with a direct buffer.
+   * @param index
+   * @param buf
+   */
+  void set(int index, ByteBuffer buf) {
+    checkIndex(index);
+    replace(index, null, buf, buf.limit());
+  }
+
+  private void replace(int index, byte[] buf, ByteBuffer direct, int len) {
+    totalBytes += len - lengths[index];
+    bufs[index] = buf;
+    directs[index] = direct;
+    offsets[index] = 0;
+    lengths[index] = len;
+    // replacing a piece orphans everything it pointed to
+    maybeCompact();
+  }
+
+  /**
+   * Compact the heap if it has grown large enough since it was last
+   * compacted.  This must be called after any change that can orphan
+   * pieces, such as copying other data over strings or lists that are
+   * already set, which adds new pieces rather than replacing the old ones.
+   */
+  void maybeCompact() {
+    if (totalBytes >= AUTO_COMPACT && totalBytes >= 2 * liveBytes) {
+      compact();
+    }
+  }
+
+  /**
+   * Add a new zero-filled piece of the specified length.  Small pieces
+   * are placed in the slab, while large ones get an array of their own.
+   * @param len
+   * @return the index of the new piece
+   */
+  int allocate(int len) {
+    if (len == 0) {
+      return add(NO_BYTES, null, 0, 0);
+    }
+    if (len >= LARGE) {
+      return add(new byte[len], null, 0, len);
+    }
+    if (slab == null || slab.length - slabPos < len) {
+      int chunk = (slab == null) ? MIN_CHUNK : Math.min(2 * slab.length, MAX_CHUNK);
+      slab = new byte[Math.max(chunk, len)];
+      slabPos = 0;
+    }
+    int index = add(slab, null, slabPos, len);
+    slabPos += len;
+    return index;
+  }
+
+  /**
+   * Add a new piece to hold the body of a list with fixed-width elements.
+   * This is stored off the Java heap if it is large enough, in which case
+   * its contents are not cleared; otherwise it is allocated as with allocate.
+   * @param len
+   * @return the index of the new piece
+   */
+  int allocateList(int len) {
+    if (isDirect(len)) {
+      return add(allocateDirect(len));
+    }
+    return allocate(len);
+  }
+
+  private int add(byte[] buf, ByteBuffer direct, int ofs, int len) {
+    if (this == EMPTY) {
+      throw new UnsupportedOperationException("Fixed-width data has no heap.");
+    }
+    if (size == bufs.length) {
+      int capacity = Math.max(8, 2 * size);
+      bufs = Arrays.copyOf(bufs, capacity);
+      directs = Arrays.copyOf(directs, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
+    bufs[size] = buf;
+    directs[size] = direct;
+    offsets[size] = ofs;
+    lengths[size] = len;
+    totalBytes += len;
+    return size++;
+  }
+
+  /**
+   * Get the total length of all pieces in the heap, including any that
+   * are no longer reachable from the root.
+   * @return
+   */
+  long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Drop all pieces that can no longer be reached from the root of the
+   * data tree.  Live pieces are renumbered, and the indices stored in the
+   * data are rewritten to match, but no bytes are moved, so views into live
+   * parts of the tree remain valid.  Views into parts of the tree that have
+   * already been replaced were detached from it anyway, and must not be
+   * used after compaction.
+   *
+   * Dropped pieces that were stored as whole arrays are freed right away.
+   * Those in the slab are freed once no live pieces remain in their chunk.
+   *
+   * @return the total length of the pieces that were dropped
+   */
+  long compact() {
+    if (root == null) {
+      return 0;
+    }
+    Compactor c = new Compactor();
+    c.walk(rootType, root, 0);
+    long reclaimed = totalBytes - c.totalBytes;
+    bufs = c.bufs;
+    directs = c.directs;
+    offsets = c.offsets;
+    lengths = c.lengths;
+    size = c.size;
+    totalBytes = c.totalBytes;
+    liveBytes = c.totalBytes;
+    return reclaimed;
+  }
+
+  /**
+   * Walks a data tree, copying the entries for reachable pieces into new
+   * tables and rewriting the indices that point to them.
+   */
+  private final class Compactor {
+    final int[] remap = new int[Heap.this.size];
+    byte[][] bufs = new byte[Heap.this.size][];
+    ByteBuffer[] directs = new ByteBuffer[Heap.this.size];
+    int[] offsets = new int[Heap.this.size];
+    int[] lengths = new int[Heap.this.size];
+    int size = 0;
+    long totalBytes = 0;
+
+    Compactor() {
+      Arrays.fill(remap, -1);
+    }
+
+    void walk(Type type, byte[] buf, int ofs) {
+      if (type.isFixedWidth()) {
+        return;
+      }
+      switch (type.getCode()) {
+        case STR:
+          relink(buf, ofs);
+          break;
+
+        case LIST:
+          int h = relink(buf, ofs + 4 * type.getDepth());
+          Type elementType = type.getSubtype(0);
+          if (h >= 0 && !elementType.isFixedWidth()) {
+            int width = elementType.dataWidth();
+            byte[] lbuf = Heap.this.bufs[h];
+            int base = Heap.this.offsets[h];
+            int count = Heap.this.lengths[h] / width;
+            for (int i = 0; i < count; i++) {
+              walk(elementType, lbuf, base + width * i);
+            }
+          }
+          break;
+
+        case CLUSTER:
+          for (int i = 0; i < type.size(); i++) {
+            walk(type.getSubtype(i), buf, ofs + type.getOffset(i));
+          }
+          break;
+
+        case ERROR:
+          walk(Type.fromTag("is" + type.getSubtype(0).toString()), buf, ofs);
+          break;
+
+        default:
+          throw new RuntimeException("Unknown type.");
+      }
+    }
+
+    /**
+     * Rewrite the heap index stored at the given position to its new value.
+     * @return the old index if this is the first time the piece has been
+     *         reached, so that the caller should walk its contents, or -1
+     */
+    int relink(byte[] buf, int pos) {
+      int old = Bytes.getInt(buf, pos);
+      if (old == -1) {
+        return -1; // not yet set
+      }
+      int first = -1;
+      if (remap[old] == -1) {
+        remap[old] = size;
+        bufs[size] = Heap.this.bufs[old];
+        directs[size] = Heap.this.directs[old];
+        offsets[size] = Heap.this.offsets[old];
+        lengths[size] = Heap.this.lengths[old];
+        totalBytes += lengths[size];
+        size++;
+        first = old;
+      }
+      Bytes.setInt(buf, pos, remap[old]);
+      return first;
+    }
+  }
+
+  /**
+   * Mark the data tree that owns this heap as read-only.  The heap itself
+   * does not enforce this; rather, setters check isReadOnly before making
+   * any change.
+   */
+  void setReadOnly() {
+    readOnly = true;
+  }
+
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * Indicates whether this is the heap of a view, whose storage belongs
+   * to another heap.
+   * @return
+   */
+  boolean isView() {
+    return parent != null;
+  }
+
+  /**
+   * Return all of this heap's direct buffers to the pool, and empty the heap.
+   * Read-only buffers, such as those mapped from files, are not pooled.
+   * Any later attempt to use the heap fails.  This must not be called on
+   * the heap of a view, which does not own its storage; see isView, nor on
+   * the shared EMPTY heap.
+   */
+  void release() {
+    for (int i = 0; i < size; i++) {
+      if (directs[i] != null && !directs[i].isReadOnly()) {
+        recycle(directs[i]);
+      }
+    }
+    bufs = new byte[0][];
+    directs = new ByteBuffer[0];
+    offsets = new int[0];
+    lengths = new int[0];
+    size = 0;
+    slab = null;
+    totalBytes = liveBytes = 0;
+    released = true;
+  }
+
+  /**
+   * Indicates whether a list body of the given length should be stored off the Java heap.
+   * @param len
+   * @return
+   */
+  static boolean isDirect(int len) {
+    return len >= directThreshold;
+  }
+
+  static int getDirectThreshold() {
+    return directThreshold;
+  }
+
+  static void setDirectThreshold(int bytes) {
+    directThreshold = bytes;
+  }
+
+  /**
+   * Get a big-endian direct buffer whose limit is the requested length,
+   * taking it from the pool if one of the right size is available.
+   * The contents of the buffer are not cleared.
+   * @param len
+   * @return
+   */
+  static ByteBuffer allocateDirect(int len) {
+    int capacity = (int) (((long) len + POOL_GRANULE - 1) / POOL_GRANULE * POOL_GRANULE);
+    ByteBuffer buf = null;
+    synchronized (pool) {
+      ArrayDeque<ByteBuffer> free = pool.get(capacity);
+      if (free != null && !free.isEmpty()) {
+        buf = free.pop();
+        pooledBytes -= capacity;
+      }
+    }
+    if (buf == null) {
+      buf = ByteBuffer.allocateDirect(capacity);
+    }
+    buf.clear();
+    buf.limit(len);
+    return buf;
+  }
+
+  private static void recycle(ByteBuffer buf) {
+    synchronized (pool) {
+      if (pooledBytes + buf.capacity() <= POOL_LIMIT) {
+        ArrayDeque<ByteBuffer> free = pool.get(buf.capacity());
+        if (free == null) {
+          free = new ArrayDeque<ByteBuffer>();
+          pool.put(buf.capacity(), free);
+        }
+        free.push(buf);
+        pooledBytes += buf.capacity();
+      }
+    }
+  }
+
+  /**
+   * Check that neither this heap nor the heap its storage is shared with
+   * has been released.  Views hold on to list buffers themselves rather
+   * than looking them up by index, so this must be checked before each
+   * access; otherwise a view could read a pooled buffer that now belongs
+   * to some other list.
+   */
+  void checkLive() {
+    for (Heap h = this; h != null; h = h.parent) {
+      if (h.released) {
+        throw new IllegalStateException("Data has been released.");
+      }
+    }
+  }
+
+  private void checkIndex(int index) {
+    checkLive();
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException(
+          "Heap index " + index + " out of bounds for size " + size + ".");
+    }
+  }
+}
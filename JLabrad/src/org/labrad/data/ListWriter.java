@@ -0,0 +1,316 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ *
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.labrad.types.Type;
+
+/**
+ * Writes a list of fixed-width elements in flattened form, one element at a
+ * time, without building the list in memory first.  The type and shape of
+ * the list are given up front, so the flattened size is known before any
+ * elements are written.  Elements are written field by field in order; for
+ * example, each element of a *(wv) is written with writeWord followed by
+ * writeValue.  Bytes are collected in a small buffer and passed along to
+ * the output stream as it fills.
+ *
+ * A ListWriter is usually obtained by creating data with Data.streamList,
+ * in which case the Source is called to write the elements whenever the
+ * data is flattened.
+ */
+public class ListWriter {
+
+  /**
+   * Produces the elements of a streamed list.
+   */
+  public interface Source {
+    /**
+     * Write all elements of the list to the given writer.  This may be
+     * called more than once, and must produce the same elements each time.
+     * When the list is sent in a packet, this is called after the start of
+     * the packet has already been sent, so if it throws or writes the wrong
+     * number of elements, the connection is closed.
+     * @param writer
+     * @throws IOException
+     */
+    void writeElements(ListWriter writer) throws IOException;
+  }
+
+  /** Size of the buffer used to collect bytes for the output stream. */
+  private static final int CHUNK_SIZE = 1 << 13;
+
+  private final OutputStream out;
+  private final Type[] fields;
+  private final long size;
+  private final byte[] chunk;
+  private int chunkPos = 0;
+  private int field = 0;
+  private long count = 0;
+
+  /**
+   * Start writing a list of the given type and shape to an output stream.
+   * The list shape is written immediately.
+   * @param out
+   * @param type the type of the list, which must have fixed-width elements
+   * @param shape
+   * @throws IOException
+   */
+  public ListWriter(OutputStream out, Type type, int... shape) throws IOException {
+    checkType(type, shape);
+    this.out = out;
+    List<Type> fields = new ArrayList<Type>();
+    addFields(type.getSubtype(0), fields);
+    this.fields = fields.toArray(new Type[fields.size()]);
+    long size = 1;
+    for (int dim : shape) {
+      size *= dim;
+    }
+    this.size = size;
+    this.chunk = new byte[CHUNK_SIZE];
+    for (int dim : shape) {
+      reserve(4);
+      Bytes.setInt(chunk, chunkPos, dim);
+      chunkPos += 4;
+    }
+  }
+
+  /**
+   * Get the flattened size of a list of the given type and shape.
+   * @param type the type of the list, which must have fixed-width elements
+   * @param shape
+   * @return
+   */
+  public static int flattenedSize(Type type, int... shape) {
+    checkType(type, shape);
+    long size = 1;
+    for (int dim : shape) {
+      size *= dim;
+    }
+    long len = 4L * shape.length + size * type.getSubtype(0).dataWidth();
+    if (len > Integer.MAX_VALUE) {
+      throw new RuntimeException("List of type '" + type + "' is too large to flatten.");
+    }
+    return (int) len;
+  }
+
+  private static void checkType(Type type, int[] shape) {
+    if (type.getCode() != Type.Code.LIST || !type.getSubtype(0).isFixedWidth()) {
+      throw new RuntimeException(
+          "Type mismatch: expecting list of fixed-width elements but found " + type + " instead.");
+    }
+    if (shape.length != type.getDepth()) {
+      throw new RuntimeException(
+          "Array depth mismatch: expecting " + type.getDepth() +
+          " but found " + shape.length + " instead.");
+    }
+    for (int dim : shape) {
+      if (dim < 0) {
+        throw new RuntimeException("Array shape must not be negative.");
+      }
+    }
+  }
+
+  /**
+   * Collect the types of the fields of an element, in flattened order.
+   */
+  private static void addFields(Type type, List<Type> fields) {
+    switch (type.getCode()) {
+      case EMPTY:
+        break;
+      case CLUSTER:
+        for (int i = 0; i < type.size(); i++) {
+          addFields(type.getSubtype(i), fields);
+        }
+        break;
+      default:
+        fields.add(type);
+    }
+  }
+
+  /**
+   * Get the number of complete elements written so far.
+   * @return
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Get the total number of elements in the list.
+   * @return
+   */
+  public long getSize() {
+    return size;
+  }
+
+  public ListWriter writeBool(boolean data) throws IOException {
+    Bytes.setBool(chunk, next(Type.Code.BOOL), data);
+    return this;
+  }
+
+  public ListWriter writeInt(int data) throws IOException {
+    Bytes.setInt(chunk, next(Type.Code.INT), data);
+    return this;
+  }
+
+  public ListWriter writeWord(long data) throws IOException {
+    Bytes.setWord(chunk, next(Type.Code.WORD), data);
+    return this;
+  }
+
+  public ListWriter writeValue(double data) throws IOException {
+    Bytes.setDouble(chunk, next(Type.Code.VALUE), data);
+    return this;
+  }
+
+  public ListWriter writeComplex(double re, double im) throws IOException {
+    int pos = next(Type.Code.COMPLEX);
+    Bytes.setDouble(chunk, pos, re);
+    Bytes.setDouble(chunk, pos + 8, im);
+    return this;
+  }
+
+  public ListWriter writeComplex(Complex data) throws IOException {
+    return writeComplex(data.getReal(), data.getImag());
+  }
+
+  public ListWriter writeTime(Date date) throws IOException {
+    Data.setTime(chunk, null, next(Type.Code.TIME), date);
+    return this;
+  }
+
+  /**
+   * Write values for consecutive fields, for example all the elements of
+   * a *v or all the fields of several elements of a *(vv).
+   * @param data
+   * @return
+   * @throws IOException
+   */
+  public ListWriter writeValues(double... data) throws IOException {
+    for (double d : data) {
+      writeValue(d);
+    }
+    return this;
+  }
+
+  /**
+   * Write a complete element, which must have the element type of the list.
+   * @param element
+   * @return
+   * @throws IOException
+   */
+  public ListWriter write(Data element) throws IOException {
+    if (field != 0) {
+      throw new IllegalStateException("Cannot write a whole element in the middle of another.");
+    }
+    List<Type> elementFields = new ArrayList<Type>();
+    addFields(element.getType(), elementFields);
+    boolean ok = elementFields.size() == fields.length;
+    for (int i = 0; ok && i < fields.length; i++) {
+      ok = elementFields.get(i).getCode() == fields[i].getCode();
+    }
+    if (!ok) {
+      throw new RuntimeException("Type mismatch: cannot write element of type " +
+          element.getType() + " to list of " + fieldsTag() + ".");
+    }
+    int width = element.getType().dataWidth();
+    byte[] bytes = element.toBytes();
+    if (count >= size) {
+      throw new IllegalStateException("All " + size + " elements have already been written.");
+    }
+    if (width > chunk.length) {
+      // too big for the buffer, so pass it straight along
+      flush();
+      out.write(bytes, 0, width);
+    } else {
+      reserve(width);
+      System.arraycopy(bytes, 0, chunk, chunkPos, width);
+      chunkPos += width;
+    }
+    count++;
+    return this;
+  }
+
+  private String fieldsTag() {
+    StringBuilder sb = new StringBuilder("(");
+    for (Type t : fields) {
+      sb.append(t);
+    }
+    return sb.append(")").toString();
+  }
+
+  /**
+   * Check the type of the next field and make room for it in the buffer.
+   * @return the position in the buffer at which to write the field
+   * @throws IOException
+   */
+  private int next(Type.Code code) throws IOException {
+    if (count >= size) {
+      throw new IllegalStateException("All " + size + " elements have already been written.");
+    }
+    Type t = fields[field];
+    if (t.getCode() != code) {
+      throw new RuntimeException(
+          "Type mismatch: expecting " + t.getCode() + " but found " + code + " instead.");
+    }
+    int width = t.dataWidth();
+    reserve(width);
+    int pos = chunkPos;
+    chunkPos += width;
+    if (++field == fields.length) {
+      field = 0;
+      count++;
+    }
+    return pos;
+  }
+
+  /**
+   * Make sure there is room in the buffer for the given number of bytes,
+   * by passing its contents along to the output stream if necessary.
+   */
+  private void reserve(int len) throws IOException {
+    if (chunkPos + len > chunk.length) {
+      flush();
+    }
+  }
+
+  private void flush() throws IOException {
+    out.write(chunk, 0, chunkPos);
+    chunkPos = 0;
+  }
+
+  /**
+   * Finish writing the list, checking that all elements have been written.
+   * This does not close the underlying stream.
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    if (count != size || field != 0) {
+      throw new IllegalStateException(
+          "Expected " + size + " elements but " + count + " were written.");
+    }
+    flush();
+  }
+}
@@ -1,14 +1,11 @@
 package org.labrad.data;
 
-import java.io.ByteArrayInputStream;
-import java.util.ArrayList;
 import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
-import org.labrad.types.Type;
 
 public class PacketDecoder extends FrameDecoder {
 
@@ -35,19 +32,12 @@ public class PacketDecoder extends FrameDecoder {
       return null;
     }
     
-    // Unpack the received data into a list of records.
+    // Unpack the received data into a list of records.  We copy
+    // the data out of the channel buffer since the records hold onto
+    // it until they are decoded.
     byte[] decoded = new byte[dataLen];
     buffer.readBytes(decoded);
-    ByteArrayInputStream is = new ByteArrayInputStream(decoded);
-    
-    List<Record> records = new ArrayList<Record>();
-    while (is.available() > 0) {
-      Data recdata = Data.fromBytes(is, Type.RECORD_TYPE);
-      long ID = recdata.get(0).getWord();
-      String tag = recdata.get(1).getString();
-      byte[] data = recdata.get(2).getBytes();
-      records.add(new Record(ID, Data.fromBytes(data, Type.fromTag(tag))));
-    }
+    List<Record> records = PacketInputStream.readRecords(decoded);
     return new Packet(new Context(ctxHigh, ctxLow), source, request, records);
   }
 }
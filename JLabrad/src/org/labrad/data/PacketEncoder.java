@@ -1,6 +1,7 @@
 package org.labrad.data;
 
-import org.jboss.netty.buffer.ChannelBuffer;
+import java.nio.ByteBuffer;
+
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -19,15 +20,13 @@ public class PacketEncoder extends OneToOneEncoder {
     // Convert to a Data first.
     Data data = (Data) msg;
     
-    // Convert the number into a byte array.
-    byte[] bytes = data.toBytes();
-    
-    // Construct a message.
-    ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
-    buf.writeBytes(bytes);
+    // Flatten into buffers of exactly the right size, and wrap them as
+    // a message without copying.  Off-heap list bodies are passed along
+    // in their direct buffers rather than being copied onto the heap.
+    ByteBuffer[] buffers = data.toByteBuffers();
     
     // Return the constructed message.
-    return buf;
+    return ChannelBuffers.wrappedBuffer(buffers);
   }
 
 }
@@ -19,10 +19,11 @@
 
 package org.labrad.data;
 
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -30,6 +31,8 @@ import org.labrad.types.Type;
 
 public class PacketInputStream extends FilterInputStream {
 
+  private static final Charset CHARSET = Charset.forName(Data.STRING_ENCODING);
+
   public PacketInputStream(InputStream in) {
     super(in);
   }
@@ -52,16 +55,32 @@ public class PacketInputStream extends FilterInputStream {
     dataLen = hdrdata.get(4).getWord();
 
     byte[] recbuf = readBytes((int)dataLen);
-    ByteArrayInputStream is = new ByteArrayInputStream(recbuf);
+    List<Record> records = readRecords(recbuf);
+    return new Packet(new Context(ctxHigh, ctxLow), source, request, records);
+  }
+
+  /**
+   * Splits the data section of a packet into records.  The data for
+   * each record is decoded lazily, when it is first accessed, so the
+   * thread reading packets only has to parse the record headers.
+   * @param buf
+   * @return
+   */
+  static List<Record> readRecords(byte[] buf) {
+    ByteBuffer bb = ByteBuffer.wrap(buf);
     List<Record> records = new ArrayList<Record>();
-    while (is.available() > 0) {
-      Data recdata = Data.fromBytes(is, Type.RECORD_TYPE);
-      long ID = recdata.get(0).getWord();
-      String tag = recdata.get(1).getString();
-      byte[] data = recdata.get(2).getBytes();
-      records.add(new Record(ID, Data.fromBytes(data, Type.fromTag(tag))));
+    while (bb.hasRemaining()) {
+      // record header: "w{ID} s{typeTag} s{data}"
+      long ID = bb.getInt() & 0xFFFFFFFFL;
+      int tagLen = bb.getInt();
+      String tag = new String(buf, bb.position(), tagLen, CHARSET);
+      bb.position(bb.position() + tagLen);
+      int dataLen = bb.getInt();
+      Data data = Data.fromBytesLazy(buf, bb.position(), dataLen, Type.fromTag(tag));
+      bb.position(bb.position() + dataLen);
+      records.add(new Record(ID, data));
     }
-    return new Packet(new Context(ctxHigh, ctxLow), source, request, records);
+    return records;
   }
 
   /**
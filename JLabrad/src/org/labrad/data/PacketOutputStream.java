@@ -20,11 +20,10 @@
 package org.labrad.data;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-
-import org.labrad.types.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Output stream that writes LabRAD packets.
@@ -33,36 +32,128 @@ import org.labrad.types.Type;
  */
 public class PacketOutputStream extends BufferedOutputStream {
 
+  /** Size of the packet header: context, request number, target and data length. */
+  private static final int HEADER_SIZE = 20;
+
+  /** Size of the buffer used to copy off-heap list bodies to the stream. */
+  private static final int DIRECT_CHUNK = 1 << 16;
+
+  private byte[] directChunk;
+
+  /** Set when a packet could not be finished after part of it was written. */
+  private boolean broken = false;
+
   public PacketOutputStream(OutputStream out) {
     super(out);
   }
 
   /**
-   * Writes a packet to the output stream.
+   * Writes a packet to the output stream.  The packet is flattened
+   * into a single buffer allocated at its exact final size, except
+   * that list bodies stored off the Java heap are copied to the stream
+   * directly from their buffers, a chunk at a time, and streamed lists
+   * are written to the stream element by element.
+   *
+   * Since streamed lists are produced while the packet is being sent, a
+   * failure can happen after part of the packet has been written.  The
+   * packet can't be finished or taken back, so in that case the underlying
+   * stream is closed and this, and every later call, throws IOException,
+   * which causes the connection to be closed.
    * @param packet
    * @throws IOException
    */
   public void writePacket(Packet packet) throws IOException {
-    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    if (broken) {
+      throw new IOException("Stream was closed after a packet failed partway through.");
+    }
+    List<Record> records = packet.getRecords();
 
-    // flatten records
-    for (Record rec : packet.getRecords()) {
-      Data recData = new Data(Type.RECORD_TYPE);
-      recData.setWord(rec.getID(), 0);
-      recData.setString(rec.getData().getTag(), 1);
-      recData.setBytes(rec.getData().toBytes(), 2);
-      os.write(recData.toBytes());
+    // compute the size of the flattened records
+    byte[][] tags = new byte[records.size()][];
+    int[] sizes = new int[records.size()];
+    int dataLen = 0, bufLen = HEADER_SIZE;
+    for (int i = 0; i < records.size(); i++) {
+      Data data = records.get(i).getData();
+      tags[i] = data.getTag().getBytes(Data.STRING_ENCODING);
+      sizes[i] = data.flattenedSize();
+      dataLen += 4 + (4 + tags[i].length) + (4 + sizes[i]);
+      bufLen += 4 + (4 + tags[i].length) + (4 + data.flattenedSizeOnHeap());
     }
 
-    // flatten packet header and append records
-    Data packetData = new Data(Type.PACKET_TYPE);
-    packetData.setWord(packet.getContext().getHigh(), 0);
-    packetData.setWord(packet.getContext().getLow(), 1);
-    packetData.setInt(packet.getRequest(), 2);
-    packetData.setWord(packet.getTarget(), 3);
-    packetData.setBytes(os.toByteArray(), 4);
+    // flatten packet header: "wwiws"
+    ByteBuffer buf = ByteBuffer.allocate(bufLen);
+    buf.putInt((int) packet.getContext().getHigh());
+    buf.putInt((int) packet.getContext().getLow());
+    buf.putInt(packet.getRequest());
+    buf.putInt((int) packet.getTarget());
+    buf.putInt(dataLen);
+
+    // flatten records: "wss"
+    Data.Splices splices = new Data.Splices();
+    for (int i = 0; i < records.size(); i++) {
+      Record rec = records.get(i);
+      Data data = rec.getData();
+      buf.putInt((int) rec.getID());
+      buf.putInt(tags[i].length);
+      buf.put(tags[i]);
+      buf.putInt(sizes[i]);
+      data.writeTo(buf, splices);
+    }
+
+    // write everything out, with off-heap list bodies and streamed lists
+    // where they belong
+    boolean done = false;
+    try {
+      int pos = 0;
+      for (int i = 0; i < splices.size(); i++) {
+        out.write(buf.array(), pos, splices.getPosition(i) - pos);
+        if (splices.getStream(i) != null) {
+          splices.getStream(i).writeTo(out);
+        } else {
+          writeDirect(splices.getBuffer(i));
+        }
+        pos = splices.getPosition(i);
+      }
+      out.write(buf.array(), pos, buf.position() - pos);
+      out.flush();
+      done = true;
+    } catch (RuntimeException e) {
+      throw new IOException("Failed to write packet; closing stream.", e);
+    } finally {
+      if (!done) {
+        fail();
+      }
+    }
+  }
 
-    out.write(packetData.toBytes());
-    out.flush();
+  /**
+   * Close the underlying stream after a packet was left unfinished,
+   * so that the peer does not read the partial packet as the start of
+   * a valid one.
+   */
+  private void fail() {
+    broken = true;
+    try {
+      out.close();
+    } catch (IOException e) {
+      // the stream is being abandoned anyway
+    }
+  }
+
+  /**
+   * Copy the remaining contents of a direct buffer to the stream.
+   * @param src
+   * @throws IOException
+   */
+  private void writeDirect(ByteBuffer src) throws IOException {
+    if (directChunk == null) {
+      directChunk = new byte[DIRECT_CHUNK];
+    }
+    ByteBuffer dup = src.duplicate();
+    while (dup.hasRemaining()) {
+      int n = Math.min(directChunk.length, dup.remaining());
+      dup.get(directChunk, 0, n);
+      out.write(directChunk, 0, n);
+    }
   }
 }
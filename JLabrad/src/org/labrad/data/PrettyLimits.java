@@ -0,0 +1,51 @@
+/*
+ * Copyright 2008 Matthew Neeley
+ * 
+ * This file is part of JLabrad.
+ *
+ * JLabrad is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ * 
+ * JLabrad is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with JLabrad.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.labrad.data;
+
+/**
+ * Limits on the size of pretty-printed data; see Data.prettyTo.  Lists
+ * show at most maxElements entries along each dimension, lists and clusters
+ * nested more than maxDepth levels deep are not shown, and output stops after
+ * maxChars characters.  In each case, "..." marks what was left out.
+ */
+public class PrettyLimits {
+  /** No limits, so that data is printed in full. */
+  public static final PrettyLimits NONE =
+      new PrettyLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+  private final int maxElements, maxDepth, maxChars;
+
+  public PrettyLimits(int maxElements, int maxDepth, int maxChars) {
+    if (maxElements < 0 || maxDepth < 0 || maxChars < 0) {
+      throw new IllegalArgumentException("Limits must not be negative.");
+    }
+    this.maxElements = maxElements;
+    this.maxDepth = maxDepth;
+    this.maxChars = maxChars;
+  }
+
+  public int getMaxElements() { return maxElements; }
+  public int getMaxDepth() { return maxDepth; }
+  public int getMaxChars() { return maxChars; }
+
+  public String toString() {
+    return "PrettyLimits(" + maxElements + ", " + maxDepth + ", " + maxChars + ")";
+  }
+}
@@ -17,9 +17,14 @@ public class OverloadedSettingHandler extends AbstractHandler {
   }
 
   public Data handle(Object obj, Data data) throws Throwable {
-    for (Type t : typeMap.keySet()) {
-      if (data.matchesType(t)) {
-        return typeMap.get(t).handle(obj, data);
+    // types are canonical, so an exact match is a single identity lookup
+    SettingHandler handler = typeMap.get(data.getType());
+    if (handler != null) {
+      return handler.handle(obj, data);
+    }
+    for (Map.Entry<Type, SettingHandler> entry : typeMap.entrySet()) {
+      if (data.matchesType(entry.getKey())) {
+        return entry.getValue().handle(obj, data);
       }
     }
     throw new RuntimeException("No matching handler found for type '" + data.getTag() + "'");
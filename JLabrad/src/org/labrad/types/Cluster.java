@@ -21,9 +21,17 @@ package org.labrad.types;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
 
 public final class Cluster extends Type {
 
+  /** Canonical cluster instances, keyed by their list of element types. */
+  private static final ConcurrentMap<Object, Cluster> instances =
+      new MapMaker().weakValues().makeMap();
+
   List<Type> elementTypes;
   int width;
   boolean fixedWidth;
@@ -36,7 +44,7 @@ public final class Cluster extends Type {
    * @return
    */
   public static Cluster of(Type... elementTypes) {
-    return new Cluster(Arrays.asList(elementTypes));
+    return of(Arrays.asList(elementTypes));
   }
 
   /**
@@ -45,7 +53,12 @@ public final class Cluster extends Type {
    * @return
    */
   public static Cluster of(List<Type> elementTypes) {
-    return new Cluster(elementTypes);
+    Cluster cluster = instances.get(elementTypes);
+    if (cluster == null) {
+      List<Type> key = ImmutableList.copyOf(elementTypes);
+      cluster = intern(instances, key, new Cluster(key));
+    }
+    return cluster;
   }
 
   private Cluster(List<Type> elementTypes) {
@@ -53,7 +66,7 @@ public final class Cluster extends Type {
 
     width = 0;
     fixedWidth = true;
-    string = "";
+    StringBuilder sb = new StringBuilder("(");
     offsets = new int[elementTypes.size()];
 
     int ofs = 0;
@@ -64,11 +77,11 @@ public final class Cluster extends Type {
       if (!t.isFixedWidth()) {
         fixedWidth = false;
       }
-      string += t.toString();
+      sb.append(t.toString());
       offsets[i] = ofs;
       ofs += t.dataWidth();
     }
-    string = "(" + string + ")";
+    string = sb.append(")").toString();
   }
 
   public boolean isFixedWidth() { return fixedWidth;}
@@ -86,6 +99,7 @@ public final class Cluster extends Type {
   }
 
   public boolean matches(Type type) {
+    if (type == this) return true;
     if (type instanceof Any) return true;
     if (!(type instanceof Cluster)) return false;
     if (type.size() != size()) return false;
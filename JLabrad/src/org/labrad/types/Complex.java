@@ -19,7 +19,19 @@
 
 package org.labrad.types;
 
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+
 public final class Complex extends Type {
+
+  /** The canonical instance without units. */
+  private static final Complex NO_UNITS = new Complex(null);
+
+  /** Canonical instances with units, keyed by unit string. */
+  private static final ConcurrentMap<Object, Complex> instances =
+      new MapMaker().weakValues().makeMap();
+
   String units;
 
   /**
@@ -29,7 +41,14 @@ public final class Complex extends Type {
    * quantity.
    */
   public static Complex of(String units) {
-    return new Complex(units);
+    if (units == null) {
+      return NO_UNITS;
+    }
+    Complex t = instances.get(units);
+    if (t == null) {
+      t = intern(instances, units, new Complex(units));
+    }
+    return t;
   }
 
   private Complex(String units) { this.units = units; }
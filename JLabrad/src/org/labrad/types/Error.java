@@ -19,7 +19,16 @@
 
 package org.labrad.types;
 
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+
 public final class Error extends Type {
+
+  /** Canonical error instances, keyed by payload type. */
+  private static final ConcurrentMap<Object, Error> instances =
+      new MapMaker().weakValues().makeMap();
+
   Type payload;
 
   /**
@@ -28,7 +37,11 @@ public final class Error extends Type {
    * @return
    */
   public static Error of(Type payload) {
-    return new Error(payload);
+    Error error = instances.get(payload);
+    if (error == null) {
+      error = intern(instances, payload, new Error(payload));
+    }
+    return error;
   }
 
   private Error(Type payload) { this.payload = payload; }
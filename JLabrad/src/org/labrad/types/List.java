@@ -19,7 +19,16 @@
 
 package org.labrad.types;
 
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+
 public final class List extends Type {
+
+  /** Canonical list instances, keyed by element type and depth. */
+  private static final ConcurrentMap<Object, List> instances =
+      new MapMaker().weakValues().makeMap();
+
   Type elementType;
 
   int depth;
@@ -32,7 +41,12 @@ public final class List extends Type {
    * @return
    */
   public static List of(Type elementType, int depth) {
-    return new List(elementType, depth);
+    Key key = new Key(elementType, depth);
+    List list = instances.get(key);
+    if (list == null) {
+      list = intern(instances, key, new List(elementType, depth));
+    }
+    return list;
   }
 
   /**
@@ -41,7 +55,33 @@ public final class List extends Type {
    * @return
    */
   public static List of(Type elementType) {
-    return new List(elementType, 1);
+    return of(elementType, 1);
+  }
+
+  /**
+   * Key for looking up canonical list instances.  Element types are
+   * themselves canonical, so they can be compared by reference.
+   */
+  private static final class Key {
+    private final Type elementType;
+    private final int depth;
+
+    Key(Type elementType, int depth) {
+      this.elementType = elementType;
+      this.depth = depth;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return elementType == other.elementType && depth == other.depth;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * elementType.hashCode() + depth;
+    }
   }
 
   /**
@@ -79,6 +119,7 @@ public final class List extends Type {
   }
 
   public boolean matches(Type type) {
+    if (type == this) return true;
     if (type instanceof Any) return true;
     if (!(type instanceof List)) return false;
     if (type.getDepth() != getDepth()) return false;
@@ -20,6 +20,14 @@
 package org.labrad.types;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public abstract class Type {
 
@@ -50,24 +58,23 @@ public abstract class Type {
   }
 
 
+  /** Maximum number of parsed type tags to keep in the cache. */
+  private static final int CACHE_SIZE = 1000;
+
   /**
-   * Encapsulates a cache of type objects.  A LinkedHashMap is used with a finite
-   * size to prevent the cache from growing without bounds.
-   */
-  /*
-	@SuppressWarnings("serial")
-	private static class Cache extends LinkedHashMap<String, Type> {
-		private static final int CACHE_SIZE = 100;
-
-		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Type> eldest) {
-			return size() > CACHE_SIZE;
-		}
-	}
+   * A cache of parsed type objects, keyed by the raw type tag.  Type objects
+   * are immutable, so the same instance can be handed out to every caller that
+   * asks for a given tag.  The cache has a finite size to prevent it from
+   * growing without bounds if we see many distinct tags.
    */
-
-  /** A cache of parsed type objects. */
-  //private static Cache cache = new Cache();
+  private static final LoadingCache<String, Type> cache = CacheBuilder.newBuilder()
+      .maximumSize(CACHE_SIZE)
+      .build(new CacheLoader<String, Type>() {
+        @Override
+        public Type load(String tag) {
+          return parseTag(tag);
+        }
+      });
 
   // types used in parsing and unparsing packets
 
@@ -85,46 +92,105 @@ public abstract class Type {
    * Encapsulates a string and a position within the
    * string that is currently being read.  We can pick off
    * characters one by one, or 'peek' ahead at the next character
-   * without removing it.
+   * without removing it.  The string itself is never copied;
+   * we just advance an index as characters are consumed.
    */
   private static class Buffer {
-    String s;
+    private final String s;
+    private int pos = 0;
+    private int end;
 
-    public Buffer(String s) { this.s = s; }
+    public Buffer(String s) {
+      this.s = s;
+      this.end = s.length();
+    }
 
-    String get() { return get(1); }
-    String get(int i) {
-      String temp = s.substring(0, i);
-      s = s.substring(i);
-      return temp;
+    char getChar() { return s.charAt(pos++); }
+    char peekChar() { return s.charAt(pos); }
+
+    /**
+     * Skip over whitespace, commas and comments.  Comments are anything
+     * embedded between curly brackets: {}, or anything after a colon,
+     * which ends the type tag.
+     */
+    void skipWhitespace() {
+      while (pos < end) {
+        char c = s.charAt(pos);
+        if (c == ',' || Character.isWhitespace(c)) {
+          pos++;
+        } else if (c == '{') {
+          skipComment();
+        } else if (c == ':') {
+          end = pos; // strip off trailing comment
+        } else {
+          break;
+        }
+      }
     }
-    char getChar() { return get().charAt(0); }
 
-    @SuppressWarnings("unused")
-    String peek() { return peek(1); }
-    String peek(int i) { return s.substring(0, i); }
-    char peekChar() { return s.charAt(0); }
+    /**
+     * Skip over a comment in curly brackets, which may be nested.
+     */
+    private void skipComment() {
+      int level = 0;
+      while (pos < end) {
+        char c = s.charAt(pos++);
+        if (c == '{') {
+          level++;
+        } else if (c == '}') {
+          level--;
+          if (level == 0) return;
+        }
+      }
+      throw new RuntimeException("No closing } found.");
+    }
 
-    @SuppressWarnings("unused")
-    void skip() { skip(1); }
-    void skip(int i) { s = s.substring(i); }
-    void skipWhitespace() { s = s.replaceFirst("[,\\s]*", ""); }
+    /**
+     * Get a substring of the original string between the specified
+     * start position and the current position.
+     */
+    String substring(int start) { return s.substring(start, pos); }
+    int position() { return pos; }
 
-    int length() { return s.length(); }
+    int length() { return end - pos; }
 
     @Override
-    public String toString() { return s; }
+    public String toString() { return s.substring(pos, end); }
   }
 
   /**
-   * Get a type object from a tag string.
+   * Get a type object from a tag string.  Parsed types are cached, so
+   * repeated calls with the same tag return the same Type instance.
    * @param tag
    * @return
    */
   public static Type fromTag(String tag) {
-    tag = stripComments(tag);
+    try {
+      return cache.getUnchecked(tag);
+    } catch (UncheckedExecutionException e) {
+      // rethrow parse errors as they would have come from the parser
+      Throwables.propagateIfPossible(e.getCause());
+      throw e;
+    }
+  }
+
+  /**
+   * Get statistics on the type cache, including hit and miss counts.
+   * @return
+   */
+  public static CacheStats getCacheStats() {
+    return cache.stats();
+  }
+
+  /**
+   * Parse a type tag string into a type object, bypassing the cache.
+   * @param tag
+   * @return
+   */
+  private static Type parseTag(String tag) {
     java.util.List<Type> subtypes = new ArrayList<Type>();
     Buffer tb = new Buffer(tag);
+    tb.skipWhitespace();
     while (tb.length() > 0) {
       subtypes.add(parseSingleType(tb));
     }
@@ -135,18 +201,6 @@ public abstract class Type {
     }
   }
 
-  /**
-   * Remove any comments from the type tag.  This includes anything after a colon,
-   * as well as anything embedded between curly brackets: {}.
-   * @param tag
-   * @return
-   */
-  private static String stripComments(String tag) {
-    tag = tag.split(":")[0]; // strip off any trailing comments
-    tag = tag.replaceAll("\\{[^\\{\\}]*\\}", ""); // remove anything in brackets
-    return tag;
-  }
-
   /**
    * Parse a single type from a buffer that may contain a cluster of types.
    * @param tb
@@ -204,8 +258,8 @@ public abstract class Type {
   private static Type parseList(Buffer tb) {
     tb.skipWhitespace();
     int depth = 0, nDigits = 0;
-    while (Character.isDigit(tb.peekChar())) {
-      depth = depth * 10 + Integer.valueOf(tb.get());
+    while (tb.length() > 0 && Character.isDigit(tb.peekChar())) {
+      depth = depth * 10 + Character.digit(tb.getChar(), 10);
       nDigits += 1;
     }
     if (depth == 0) {
@@ -236,25 +290,54 @@ public abstract class Type {
    */
   private static String parseUnits(Buffer tb) {
     tb.skipWhitespace();
-    StringBuffer units = new StringBuffer();
-    char c;
     if ((tb.length() == 0) || (tb.peekChar() != '[')) {
       return null;
     }
     tb.getChar(); // drop '['
+    int start = tb.position();
     while (tb.length() > 0) {
-      c = tb.getChar();
-      if (c == ']') {
-        return units.toString();
+      if (tb.peekChar() == ']') {
+        String units = tb.substring(start);
+        tb.getChar(); // drop ']'
+        return units;
       }
-      units.append(c);
+      tb.getChar();
     }
     throw new RuntimeException("No closing ] found.");
   }
 
 
+  /**
+   * Add a newly-created type to a table of canonical instances, unless
+   * another thread has already added an equivalent one, in which case
+   * that one is returned instead.
+   * @param instances
+   * @param key
+   * @param type
+   * @return
+   */
+  static <T extends Type> T intern(ConcurrentMap<Object, T> instances, Object key, T type) {
+    T existing = instances.putIfAbsent(key, type);
+    return existing != null ? existing : type;
+  }
+
+
   // instance methods on type objects
 
+  /**
+   * Type objects are canonical: structurally equal types are always
+   * represented by the same instance, so equality is a reference check.
+   */
+  @Override
+  public final boolean equals(Object obj) {
+    return this == obj;
+  }
+
+  @Override
+  public final int hashCode() {
+    return System.identityHashCode(this);
+  }
+
   public boolean matches(String tag) {
     return matches(Type.fromTag(tag));
   }
@@ -367,10 +450,35 @@ public abstract class Type {
         "(ss)", "(si)",
         "*s", "*2s"};
     for (int i = 0; i < notMatchTests.length; i += 2) {
-      Type t1 = Type.fromTag(matchTests[i]);
-      Type t2 = Type.fromTag(matchTests[i+1]);
+      Type t1 = Type.fromTag(notMatchTests[i]);
+      Type t2 = Type.fromTag(notMatchTests[i+1]);
       assert !t1.matches(t2);
       System.out.println("'" + t1 + "' does not match '" + t2 + "'");
     }
+
+    // check that structurally equal types are the same instance
+    assert fromTag("*(s v[Hz] *v)") == List.of(Cluster.of(Str.getInstance(),
+        Value.of("Hz"), List.of(Value.of(null))));
+    assert fromTag("(is)") == parseTag("i, s{comment}");
+    assert fromTag("E*2c[V]") == Error.of(List.of(Complex.of("V"), 2));
+    assert fromTag("v[m]") != fromTag("v");
+    System.out.println("canonical types okay.");
+
+    System.out.println("cache: " + getCacheStats());
+
+    // time the parser itself, bypassing the cache
+    String[] benchTags = {
+        "wss*s*ss",
+        "*(s{name} v[Hz]{freq} *v[mV]{trace}): list of sweeps",
+        "(ww{ctx} i{req} *(w{ID} s{tag} s{data}) *2c[V] t E?)",
+        "*(vvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvvv)"};
+    int nParse = 100000;
+    for (String tag : benchTags) {
+      for (int i = 0; i < nParse / 10; i++) parseTag(tag); // warm up
+      long start = System.nanoTime();
+      for (int i = 0; i < nParse; i++) parseTag(tag);
+      long elapsed = System.nanoTime() - start;
+      System.out.println(String.format("parse '%s': %.3f us", tag, elapsed / 1000.0 / nParse));
+    }
   }
 }
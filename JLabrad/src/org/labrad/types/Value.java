@@ -19,7 +19,19 @@
 
 package org.labrad.types;
 
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+
 public final class Value extends Type {
+
+  /** The canonical instance without units. */
+  private static final Value NO_UNITS = new Value(null);
+
+  /** Canonical instances with units, keyed by unit string. */
+  private static final ConcurrentMap<Object, Value> instances =
+      new MapMaker().weakValues().makeMap();
+
   String units;
 
   /**
@@ -31,7 +43,14 @@ public final class Value extends Type {
    * @return
    */
   public static Value of(String units) {
-    return new Value(units);
+    if (units == null) {
+      return NO_UNITS;
+    }
+    Value t = instances.get(units);
+    if (t == null) {
+      t = intern(instances, units, new Value(units));
+    }
+    return t;
   }
 
   private Value(String units) { this.units = units; }
@@ -124,13 +124,6 @@ public class DataVaultServiceImpl extends RemoteServiceServlet implements
   }
 
   private double[][] parseData(Data answer) {
-    int[] shape = answer.getArrayShape();
-    double[][] data = new double[shape[0]][shape[1]];
-    for (int i = 0; i < shape[0]; i++) {
-      for (int j = 0; j < shape[1]; j++) {
-        data[i][j] = answer.get(i, j).getValue();
-      }
-    }
-    return data;
+    return answer.getValueArray2D();
   }
 }